@@ -42,7 +42,8 @@ public class ActivityLog {
             while ((line = reader.readLine()) != null) {
                 // Format: username|fileName|activityType|descriptionBase64|timestamp
                 String[] parts = line.split("\\|", 5);
-                if (parts.length == 5) {
+                // A file name containing '|' shifts the fields; skip such a line rather than fail startup
+                if (parts.length == 5 && isActivityType(parts[2])) {
                     String username = parts[0];
                     String fileName = parts[1];
                     ActivityType type = ActivityType.valueOf(parts[2]);
@@ -63,6 +64,15 @@ public class ActivityLog {
         }
     }
     
+    private static boolean isActivityType(String name) {
+        for (ActivityType type : ActivityType.values()) {
+            if (type.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     /**
      * Log a new activity and persist to file.
      */
@@ -0,0 +1,115 @@
+package FileServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed storage for uploaded files.
+ *
+ * Each distinct content is stored once at <root>/<first two hex digits>/<sha-256>,
+ * however many users upload it under whatever names. File entries in the journal
+ * carry the hash, so reference counts are rebuilt from the live index at startup
+ * rather than persisted; blobs left without references by a crash are removed then.
+ */
+public class BlobStore {
+    private static final int LOCK_STRIPES = 64;
+
+    private final File root;
+    private final Map<String, Integer> refCounts = new ConcurrentHashMap<>();
+    // Store and release of the same hash are serialized; different hashes rarely share a stripe
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public BlobStore(String path) {
+        this.root = new File(path);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String hash) {
+        return locks[(hash.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    public File blobFile(String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Count the references held by the given live files and delete blobs nobody references.
+     * @param removeOrphans false when the live files may be incomplete (the journal had
+     *                      unreadable records); unreferenced blobs are then kept on disk
+     */
+    public void rebuild(Collection<FileInfo> liveFiles, boolean removeOrphans) {
+        refCounts.clear();
+        for (FileInfo fileInfo : liveFiles) {
+            if (fileInfo.getBlobHash() != null) {
+                refCounts.merge(fileInfo.getBlobHash(), 1, Integer::sum);
+            }
+        }
+
+        if (!removeOrphans) {
+            System.out.println("Blob store: " + refCounts.size() + " blobs referenced, orphans kept");
+            return;
+        }
+
+        int orphans = 0;
+        File[] shards = root.listFiles(File::isDirectory);
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] blobs = shard.listFiles();
+                if (blobs == null) continue;
+                for (File blob : blobs) {
+                    if (!refCounts.containsKey(blob.getName()) && blob.delete()) {
+                        orphans++;
+                    }
+                }
+            }
+        }
+        System.out.println("Blob store: " + refCounts.size() + " blobs referenced, " + orphans + " orphans removed");
+    }
+
+    /**
+     * Take a reference to the upload's content, moving its temp file into the store
+     * unless the same content is already there, in which case the temp file is discarded.
+     * @return true if the content was already stored
+     */
+    public boolean store(String hash, UploadSession session) throws IOException {
+        synchronized (lockFor(hash)) {
+            File blob = blobFile(hash);
+            if (refCounts.containsKey(hash) && blob.exists()) {
+                session.discard();
+                refCounts.merge(hash, 1, Integer::sum);
+                return true;
+            }
+
+            File shard = blob.getParentFile();
+            if (!shard.exists() && !shard.mkdirs()) {
+                throw new IOException("Cannot create blob directory " + shard.getPath());
+            }
+            session.commit(blob);
+            refCounts.merge(hash, 1, Integer::sum);
+            return false;
+        }
+    }
+
+    /**
+     * Drop one reference, deleting the blob when none remain.
+     * @return true if that was the last reference
+     */
+    public boolean release(String hash) {
+        synchronized (lockFor(hash)) {
+            Integer remaining = refCounts.computeIfPresent(hash, (h, refs) -> refs > 1 ? refs - 1 : null);
+            if (remaining == null) {
+                File blob = blobFile(hash);
+                if (blob.exists() && !blob.delete()) {
+                    System.err.println("Error deleting blob: " + blob.getPath());
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
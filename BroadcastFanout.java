@@ -0,0 +1,96 @@
+package FileServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Delivers broadcast ("ALL") file requests off the requester's thread.
+ * A dispatcher drains every queued broadcast at once and stores them in the
+ * shared broadcast inbox with a single append; notification pushes to online
+ * users then run in parallel on a small pool.
+ */
+public class BroadcastFanout {
+    private static final int PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final BlockingQueue<FileRequest> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService pool;
+    private final MessageManager messageManager;
+    private final Supplier<Set<String>> onlineUsers;
+
+    public BroadcastFanout(MessageManager messageManager, Supplier<Set<String>> onlineUsers) {
+        this.messageManager = messageManager;
+        this.onlineUsers = onlineUsers;
+        this.pool = Executors.newFixedThreadPool(PARALLELISM, task -> {
+            Thread thread = new Thread(task, "broadcast-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread dispatcher = new Thread(this::dispatchLoop, "broadcast-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queue a broadcast request; returns immediately.
+     */
+    public void submit(FileRequest request) {
+        queue.add(request);
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            List<FileRequest> requests = new ArrayList<>();
+            try {
+                requests.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(requests);
+
+            try {
+                deliverToMailboxes(requests);
+                pushNotifications(requests);
+            } catch (RuntimeException e) {
+                System.err.println("Error delivering broadcast: " + e.getMessage());
+            }
+        }
+    }
+
+    private void deliverToMailboxes(List<FileRequest> requests) {
+        // One shared record per broadcast; each user's inbox view is merged in on read
+        List<Message> messages = new ArrayList<>(requests.size());
+        for (FileRequest request : requests) {
+            String content = "File request (ID: " + request.getRequestId() + "): " + request.getDescription();
+            messages.add(new Message(UUID.randomUUID().toString(), Message.MessageType.FILE_REQUEST,
+                                     request.getRequester(), content));
+        }
+        messageManager.addBroadcasts(messages);
+    }
+
+    private void pushNotifications(List<FileRequest> requests) {
+        // Notify only online users except the requester
+        for (String username : onlineUsers.get()) {
+            for (FileRequest request : requests) {
+                if (username.equals(request.getRequester())) {
+                    continue;
+                }
+                pool.execute(() -> {
+                    try {
+                        Server.sendNotification(username, "NEW_FILE_REQUEST (ID: " + request.getRequestId() + ") from "
+                                + request.getRequester() + ": " + request.getDescription());
+                    } catch (Exception e) {
+                        System.err.println("Error sending notification to " + username + ": " + e.getMessage());
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package FileServer;
+
+/**
+ * Server-wide budget for upload chunk buffers.
+ *
+ * Space is handed out as leases. A lease can grow or shrink with its upload's
+ * chunk size and is given back by release(), which only counts the first time,
+ * so a session torn down along several paths at once still returns its space
+ * exactly once.
+ */
+public class BufferBudget {
+    private final int capacity;
+
+    // Guarded by this
+    private int used = 0;
+    private int leases = 0;
+
+    public class Lease {
+        private int size;
+        private boolean released = false;
+
+        private Lease(int size) {
+            this.size = size;
+        }
+
+        public synchronized int getSize() {
+            return size;
+        }
+
+        /**
+         * Move the lease to a new size.
+         * @return false if it is released, or growing it would exceed the budget
+         */
+        public synchronized boolean resize(int newSize) {
+            if (released) {
+                return false;
+            }
+            if (!adjust(newSize - size, false)) {
+                return false;
+            }
+            size = newSize;
+            return true;
+        }
+
+        /**
+         * Give the space back. Only the first call has any effect.
+         * @return true if this call released the lease
+         */
+        public synchronized boolean release() {
+            if (released) {
+                return false;
+            }
+            released = true;
+            adjust(-size, true);
+            return true;
+        }
+    }
+
+    public BufferBudget(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Check and apply a change in one step so concurrent leases cannot overshoot the budget
+    private synchronized boolean adjust(int delta, boolean closing) {
+        if (delta > 0 && used + delta > capacity) {
+            return false;
+        }
+        used += delta;
+        if (closing) {
+            leases--;
+        }
+        if (delta < 0) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Lease space, waiting up to timeoutMs for other uploads to give some back.
+     * @return the lease, or null if the space did not free up in time
+     */
+    public synchronized Lease acquire(int size, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (used + size > capacity) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        used += size;
+        leases++;
+        return new Lease(size);
+    }
+
+    /**
+     * Fraction of the budget in use.
+     */
+    public synchronized double pressure() {
+        return (double) used / capacity;
+    }
+
+    public synchronized String metricsSummary() {
+        return "upload buffers used=" + used + "/" + capacity + " leases=" + leases;
+    }
+}
@@ -0,0 +1,73 @@
+package FileServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Shared pool of heap buffers for chunk data, so the steady-state transfer path
+ * reuses a handful of buffers instead of allocating one per chunk.
+ *
+ * Buffers come in power-of-two size classes from MIN_CLASS_SIZE to MAX_CLASS_SIZE;
+ * a request is served from the smallest class that fits, with the limit set to the
+ * requested size. Larger requests are allocated as they come and not pooled.
+ * Heap rather than direct buffers: chunks are handed to streams, digests and deflaters,
+ * which all want the backing array.
+ */
+public final class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 12; // 4 KB
+    private static final int MAX_CLASS_SHIFT = 20; // 1 MB
+    private static final int MAX_CLASS_SIZE = 1 << MAX_CLASS_SHIFT;
+    // Idle buffers kept per class; beyond that released buffers are left to the GC
+    private static final int MAX_IDLE_PER_CLASS = 32;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayBlockingQueue<ByteBuffer>[] classes =
+            new ArrayBlockingQueue[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayBlockingQueue<>(MAX_IDLE_PER_CLASS);
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // Index of the smallest class holding size bytes
+    private static int classFor(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * @return a buffer positioned at 0 with its limit at size
+     */
+    public static ByteBuffer acquire(int size) {
+        if (size > MAX_CLASS_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        int index = classFor(size);
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << (index + MIN_CLASS_SHIFT));
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Hand a buffer back. The caller must not touch it afterwards.
+     * Buffers that are not the exact size of a class are ignored, so anything
+     * from acquire() may be released, and a null is allowed.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() || !buffer.hasArray() || buffer.arrayOffset() != 0) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (capacity > MAX_CLASS_SIZE || Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_CLASS_SHIFT)) {
+            return;
+        }
+        classes[classFor(capacity)].offer(buffer);
+    }
+}
@@ -0,0 +1,58 @@
+package FileServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * OutputStream over a SocketChannel that keeps working while the channel is
+ * parked in non-blocking mode by the SelectorEngine. The socket's own stream
+ * throws IllegalBlockingModeException in that state, which would break pushes
+ * from other threads such as notifications.
+ * A write that makes no progress for WRITE_TIMEOUT_MS fails with SocketTimeoutException,
+ * so a peer that stops reading cannot hold the writing thread forever.
+ */
+public class ChannelOutputStream extends OutputStream {
+    private static final long WRITE_TIMEOUT_MS = 30_000;
+
+    private final SocketChannel channel;
+
+    public ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+        while (buffer.hasRemaining()) {
+            // A non-blocking channel returns 0 while the socket send buffer is full
+            if (channel.write(buffer) > 0) {
+                deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+            } else {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new SocketTimeoutException("Peer stopped reading from " + channel);
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing to " + channel);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,104 @@
+package FileServer;
+
+/**
+ * Chooses the chunk size for an upload.
+ *
+ * The first size comes from the file size, shrunk when the server's chunk buffer
+ * budget is under pressure. While a windowed upload runs, the size is retuned at
+ * every acknowledgement from the measured throughput and round-trip time: large
+ * enough that the window covers twice the bandwidth-delay product and that the
+ * link is not flooded with tiny frames, never more than doubling or halving per step.
+ */
+public class ChunkSizePolicy {
+    // Before anything is measured, split a file into about this many chunks
+    private static final int INITIAL_CHUNKS_PER_FILE = 64;
+    // Upper bound on chunk rate; higher throughput means bigger chunks
+    private static final int MAX_CHUNKS_PER_SECOND = 1000;
+    // Above this buffer pressure chunks only shrink
+    private static final double HIGH_PRESSURE = 0.8;
+    private static final double THROUGHPUT_WEIGHT = 0.25;
+
+    private final int window;
+    private int chunkSize;
+
+    private final long approvedAt;
+    private long rttNanos = -1;
+    private double throughput = 0; // bytes per second, smoothed
+    private long intervalStart;
+    private long intervalBytes = 0;
+
+    /**
+     * @param chunkSize initial chunk size, from initialChunkSize
+     * @param window    chunks the client may send ahead of the ACKs
+     */
+    public ChunkSizePolicy(int chunkSize, int window) {
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.approvedAt = System.nanoTime();
+        this.intervalStart = approvedAt;
+    }
+
+    /**
+     * @param bufferPressure fraction of the server chunk buffer budget in use (0..1)
+     */
+    public static int initialChunkSize(long fileSize, double bufferPressure) {
+        long size = fileSize / INITIAL_CHUNKS_PER_FILE;
+        size = (long) (size * (1.0 - Math.min(1.0, bufferPressure)));
+        return clamp(size);
+    }
+
+    public void chunkReceived(int bytes) {
+        long now = System.nanoTime();
+        if (rttNanos < 0) {
+            // Approval out, first chunk back: one round trip plus the client's first read
+            rttNanos = Math.max(1, now - approvedAt);
+            intervalStart = now;
+        }
+        intervalBytes += bytes;
+    }
+
+    /**
+     * Fold the current measurement interval into the estimates and pick the size
+     * to advertise with the next ACK.
+     */
+    public int nextChunkSize(double bufferPressure) {
+        long now = System.nanoTime();
+        long elapsed = now - intervalStart;
+        if (elapsed > 0 && intervalBytes > 0) {
+            double sample = intervalBytes * 1e9 / elapsed;
+            throughput = throughput == 0 ? sample : throughput + THROUGHPUT_WEIGHT * (sample - throughput);
+        }
+        intervalStart = now;
+        intervalBytes = 0;
+
+        if (throughput == 0 || rttNanos < 0) {
+            return chunkSize;
+        }
+
+        double bandwidthDelay = throughput * rttNanos / 1e9;
+        long target = (long) Math.max(2 * bandwidthDelay / window, throughput / MAX_CHUNKS_PER_SECOND);
+        target = Math.max(chunkSize / 2, Math.min(2L * chunkSize, target));
+        if (bufferPressure > HIGH_PRESSURE) {
+            target = Math.min(target, chunkSize / 2);
+        }
+
+        chunkSize = clamp(target);
+        return chunkSize;
+    }
+
+    /**
+     * Record the size actually granted, which may be smaller than requested if the
+     * buffer budget could not cover it.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    private static int clamp(long size) {
+        return (int) Math.max(Server.MIN_CHUNK_SIZE, Math.min(Server.MAX_CHUNK_SIZE, size));
+    }
+}
@@ -1,19 +1,39 @@
 package FileServer;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Client {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 6666;
     private static final int NOTIFY_PORT = 6667;
+    // Fall back to object-stream chunks on the control connection (-Dfileserver.inlineDownloads=true)
+    private static final boolean INLINE_DOWNLOADS = Boolean.getBoolean("fileserver.inlineDownloads");
+    // Data connections per download over the framed protocol (-Dfileserver.downloadStreams=N, 1 disables)
+    private static final int DOWNLOAD_STREAMS = Integer.getInteger("fileserver.downloadStreams", 4);
+    // Speak Java serialization on the control connection (-Dfileserver.legacyProtocol=true)
+    private static final boolean LEGACY_PROTOCOL = Boolean.getBoolean("fileserver.legacyProtocol");
+    private static final String RESUME_MARKER_SUFFIX = ".resume";
     
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private ControlChannel channel;
+    // Negotiated at login: file data may be deflated on this session
+    private boolean compression;
     private Socket notifySocket;
     private ObjectOutputStream notifyOut;
     private ObjectInputStream notifyIn;
@@ -21,15 +41,27 @@ public class Client {
     private Scanner scanner;
     
     public Client() throws IOException {
-        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+        channel = connectControlChannel();
         notifySocket = new Socket(SERVER_ADDRESS, NOTIFY_PORT);
         notifyOut = new ObjectOutputStream(notifySocket.getOutputStream());
         notifyIn = new ObjectInputStream(notifySocket.getInputStream());
         scanner = new Scanner(System.in);
     }
     
+    private ControlChannel connectControlChannel() throws IOException {
+        if (!LEGACY_PROTOCOL) {
+            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+            ControlChannel framed = FramedControlChannel.connect(socket);
+            if (framed != null) {
+                return framed;
+            }
+            // Older server: reconnect and speak the legacy protocol
+            socket.close();
+        }
+        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        return ObjectControlChannel.connect(socket);
+    }
+    
     public void start() {
         try {
 
@@ -39,18 +71,24 @@ public class Client {
             }
             
             while (true) {
-                String menu = (String) in.readObject();
+                String menu = (String) channel.readObject();
                 System.out.print(menu);
                 String choice = scanner.nextLine();
-                out.writeObject(choice);
-                out.flush();
+                channel.writeObject(choice);
+                channel.flush();
                 
                 if (choice.trim().equals("10")) {
-                    String response = (String) in.readObject();
+                    String response = (String) channel.readObject();
                     System.out.println(response);
                     break;
                 }
 
+                // Framed sessions page through file listings instead of getting them whole
+                if (!channel.isLegacy() && (choice.trim().equals("2") || choice.trim().equals("3"))) {
+                    browseFiles("\n'>' next page, '?' filter or sort, Enter to go back: ");
+                    continue;
+                }
+
                 // Handle file upload
                 if(choice.trim().equals("4")){
                     handleFileUpload();
@@ -88,7 +126,7 @@ public class Client {
                 }
                 
                 // Read and display server response
-                String response = (String) in.readObject();
+                String response = (String) channel.readObject();
                 System.out.println(response);
                 
                 
@@ -103,21 +141,26 @@ public class Client {
     
     private boolean handleLogin() throws IOException, ClassNotFoundException {
         // Get username prompt
-        String prompt = (String) in.readObject();
+        String prompt = (String) channel.readObject();
         System.out.print(prompt);
         
         // Send username
         String username = scanner.nextLine().trim();
-        out.writeObject(username);
+        channel.writeObject(username);
         
         // Get login result
-        String loginStatus = (String) in.readObject();
-        String message = (String) in.readObject();
+        String loginStatus = (String) channel.readObject();
+        String message = (String) channel.readObject();
         System.out.println(message);
         
         if (!loginStatus.equals("LOGIN_SUCCESS")) {
             return false;
         }
+        
+        if (!channel.isLegacy()) {
+            channel.writeObject("COMPRESSION:" + (Compression.ENABLED ? Compression.DEFLATE : Compression.NONE));
+            compression = ((String) channel.readObject()).equals("COMPRESSION:" + Compression.DEFLATE);
+        }
 
         // Register to notification channel
         notifyOut.writeObject(username);
@@ -143,8 +186,12 @@ public class Client {
     
     private void handleFileUpload() throws IOException, ClassNotFoundException {
         
-        System.out.print("Is this upload in response to a request? (yes/no): ");
+        System.out.print("Is this upload in response to a request? (yes/no, or 'resume' to continue an interrupted upload): ");
         String resp = scanner.nextLine().trim();
+        if (resp.equalsIgnoreCase("resume")) {
+            resumeFileUpload();
+            return;
+        }
         boolean isResponseToRequest = resp.equalsIgnoreCase("yes");
         String requestId = null;
 
@@ -163,14 +210,14 @@ public class Client {
             System.out.println("File not found: " + filePath);
             
             if (isResponseToRequest) {
-                out.writeObject("REQUEST_UPLOAD");
-                out.writeObject(requestId == null ? "" : requestId);
+                channel.writeObject("REQUEST_UPLOAD");
+                channel.writeObject(requestId == null ? "" : requestId);
             } else {
-                out.writeObject("NORMAL_UPLOAD");
+                channel.writeObject("NORMAL_UPLOAD");
             }
-            out.writeObject("CANCEL_UPLOAD");
-            out.writeObject(0L);
-            out.writeObject(false);
+            channel.writeObject("CANCEL_UPLOAD");
+            channel.writeObject(0L);
+            channel.writeObject(false);
             return;
         }
         
@@ -196,19 +243,20 @@ public class Client {
 
         // Send upload mode + (optional) requestId to server
         if (isResponseToRequest) {
-            out.writeObject("REQUEST_UPLOAD");
-            out.writeObject(requestId == null ? "" : requestId);
+            channel.writeObject("REQUEST_UPLOAD");
+            channel.writeObject(requestId == null ? "" : requestId);
         } else {
-            out.writeObject("NORMAL_UPLOAD");
+            channel.writeObject("NORMAL_UPLOAD");
         }
         
         // Send file info to server
-        out.writeObject(fileName);
-        out.writeObject(fileSize);
-        out.writeObject(isPublic);
+        channel.writeObject(fileName);
+        channel.writeObject(fileSize);
+        channel.writeObject(isPublic);
         
         // Check for file conflict
-        String conflictCheck = (String) in.readObject();
+        boolean deltaReplace = false;
+        String conflictCheck = (String) channel.readObject();
         if (conflictCheck.equals("INVALID_REQUEST_ID")) {
             System.out.println("Invalid request ID. Upload cancelled.");
             return;
@@ -224,32 +272,34 @@ public class Client {
             String choice = scanner.nextLine().trim();
             
             if (choice.equals("1")) {
-                out.writeObject("REPLACE");
+                // The framed protocol can send just the changed blocks (files up to 2 GB are mapped for the scan)
+                deltaReplace = !channel.isLegacy() && fileSize <= Integer.MAX_VALUE;
+                channel.writeObject(deltaReplace ? "REPLACE_DELTA" : "REPLACE");
                 System.out.println("Replacing existing file...");
             } else if (choice.equals("2")) {
                 System.out.print("Enter new file name: ");
                 String newFileName = scanner.nextLine().trim();
                 if (newFileName.isEmpty()) {
                     System.out.println("Invalid file name. Cancelling upload.");
-                    out.writeObject("CANCEL");
-                    String cancelMsg = (String) in.readObject();
+                    channel.writeObject("CANCEL");
+                    String cancelMsg = (String) channel.readObject();
                     System.out.println(cancelMsg);
                     return;
                 }
                 fileName = newFileName;
-                out.writeObject("RENAME:" + fileName);
+                channel.writeObject("RENAME:" + fileName);
                 System.out.println("Uploading with new name: " + fileName);
             } else {
                 System.out.println("Cancelling upload...");
-                out.writeObject("CANCEL");
-                String cancelMsg = (String) in.readObject();
+                channel.writeObject("CANCEL");
+                String cancelMsg = (String) channel.readObject();
                 System.out.println(cancelMsg);
                 return;
             }
         }
         
         // Wait for server response
-        String response = (String) in.readObject();
+        String response = (String) channel.readObject();
         
         if (response.startsWith("UPLOAD_REJECTED:")) {
             System.out.println(response.substring(16));
@@ -260,65 +310,357 @@ public class Client {
             String[] parts = response.substring(16).split(":");
             String fileId = parts[0];
             int chunkSize = Integer.parseInt(parts[1]);
+            // Servers that pipeline uploads advertise a window; otherwise wait for each ACK
+            int window = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
             
             System.out.println("Upload approved! File ID: " + fileId);
             System.out.println("Chunk size: " + chunkSize + " bytes");
+            if (window > 1) {
+                System.out.println("Window: " + window + " chunks");
+            }
             
-            // Read and send file in chunks
-            java.io.FileInputStream fis = new java.io.FileInputStream(file);
-            byte[] buffer = new byte[chunkSize];
-            int bytesRead;
-            int chunkCount = 0;
+            if (deltaReplace) {
+                // DELTA_SIGNATURES:<blockSize>:<blockCount>, then the packed signatures
+                String[] delta = ((String) channel.readObject()).substring(17).split(":");
+                byte[] signatures = (byte[]) channel.readObject();
+                System.out.println("Server has " + delta[1] + " blocks of the existing file; sending changes only");
+                sendFileDelta(file, chunkSize, window, Integer.parseInt(delta[0]), signatures);
+            } else {
+                sendFileChunks(file, 0, chunkSize, window);
+            }
+        }
+    }
+    
+    private void resumeFileUpload() throws IOException, ClassNotFoundException {
+        System.out.print("Enter File ID of the interrupted upload: ");
+        String fileId = scanner.nextLine().trim();
+        System.out.print("Enter file path on your system: ");
+        String filePath = scanner.nextLine();
+        java.io.File file = new java.io.File(filePath);
+        
+        channel.writeObject("RESUME_UPLOAD");
+        if (!file.exists() || fileId.isEmpty()) {
+            System.out.println(fileId.isEmpty() ? "Invalid File ID." : "File not found: " + filePath);
+            channel.writeObject("CANCEL_UPLOAD");
+            System.out.println((String) channel.readObject());
+            return;
+        }
+        channel.writeObject(fileId);
+        channel.writeObject(file.length());
+        
+        String response = (String) channel.readObject();
+        if (response.startsWith("UPLOAD_REJECTED:")) {
+            System.out.println(response.substring(16));
+            return;
+        }
+        
+        if (response.startsWith("UPLOAD_RESUMED:")) {
+            // UPLOAD_RESUMED:<fileId>:<chunkSize>:<window>:<offset>
+            String[] parts = response.substring(15).split(":");
+            int chunkSize = Integer.parseInt(parts[1]);
+            int window = Integer.parseInt(parts[2]);
+            long offset = Long.parseLong(parts[3]);
+            
+            System.out.println("Resuming upload " + fileId + " at byte " + offset + " of " + file.length());
+            sendFileChunks(file, offset, chunkSize, window);
+        }
+    }
+    
+    /**
+     * Send the file from the given offset, keeping at most window chunks unacknowledged,
+     * then complete the upload and print the server's result.
+     */
+    private void sendFileChunks(java.io.File file, long offset, int chunkSize, int window) throws IOException, ClassNotFoundException {
+        // Compress this file's chunks if the session allows it and the content is worth it
+        channel.setCompression(compression && Compression.worthCompressing(file.getName(), file));
+        try {
+            UploadWindow uploadWindow = new UploadWindow(chunkSize, window);
+        
+            // Read and send file in chunks through one pooled buffer
+            ByteBuffer buffer = BufferPool.acquire(chunkSize);
+            try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
+                fis.getChannel().position(offset);
             
-            while ((bytesRead = fis.read(buffer)) > 0) {
-                // Send chunk indicator
-                out.writeObject("CHUNK");
+                while (true) {
+                    if (!uploadWindow.awaitCredit()) {
+                        return;
+                    }
+                
+                    // Read only after the wait, so the chunk uses the latest advertised size
+                    int size = uploadWindow.getChunkSize();
+                    if (buffer.capacity() < size) {
+                        BufferPool.release(buffer);
+                        buffer = BufferPool.acquire(size);
+                    }
+                    int bytesRead = fis.read(buffer.array(), 0, size);
+                    if (bytesRead <= 0) {
+                        break;
+                    }
                 
-                // Send chunk data
-                byte[] chunk = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-                out.writeObject(chunk);
+                    // Send chunk indicator and data
+                    buffer.clear().limit(bytesRead);
+                    channel.writeChunk(buffer);
                 
-                // Wait for ACK
-                String ack = (String) in.readObject();
-                if (!ack.equals("ACK")) {
-                    System.out.println("Error during upload: " + ack);
-                    fis.close();
+                    uploadWindow.sent();
+                    System.out.println("Sent chunk " + uploadWindow.getSent() + " (" + bytesRead + " bytes)");
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        
+            uploadWindow.complete();
+        } finally {
+            channel.setCompression(false);
+        }
+    }
+    
+    /**
+     * Replace a file by sending only what changed: blocks the server already has go
+     * as COPY instructions, everything else as ordinary chunks.
+     */
+    private void sendFileDelta(java.io.File file, int chunkSize, int window, int blockSize, byte[] signatures)
+            throws IOException, ClassNotFoundException {
+        // Compress this file's chunks if the session allows it and the content is worth it
+        channel.setCompression(compression && Compression.worthCompressing(file.getName(), file));
+        try {
+            UploadWindow uploadWindow = new UploadWindow(chunkSize, window);
+            long[] literalBytes = {0};
+            long[] copiedBlocks = {0};
+        
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer data = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+                boolean scanned = DeltaSync.scan(data, blockSize, signatures, new DeltaSync.Sink() {
+                    @Override
+                    public boolean copy(long startBlock, int blockCount) throws IOException {
+                        if (!awaitCredit()) {
+                            return false;
+                        }
+                        channel.writeObject("COPY:" + startBlock + ":" + blockCount);
+                        uploadWindow.sent();
+                        copiedBlocks[0] += blockCount;
+                        return true;
+                    }
+                
+                    @Override
+                    public boolean literal(ByteBuffer literal) throws IOException {
+                        if (!awaitCredit()) {
+                            return false;
+                        }
+                        channel.writeChunk(literal);
+                        uploadWindow.sent();
+                        literalBytes[0] += literal.remaining();
+                        return true;
+                    }
+                
+                    @Override
+                    public int literalLimit() {
+                        return uploadWindow.getChunkSize();
+                    }
+                
+                    private boolean awaitCredit() throws IOException {
+                        try {
+                            return uploadWindow.awaitCredit();
+                        } catch (ClassNotFoundException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                });
+                if (!scanned) {
                     return;
                 }
+            }
+        
+            System.out.println("Delta upload: sent " + literalBytes[0] + " new bytes, reused " + copiedBlocks[0] +
+                               " blocks (" + copiedBlocks[0] * blockSize + " bytes)");
+            uploadWindow.complete();
+        } finally {
+            channel.setCompression(false);
+        }
+    }
+    
+    /**
+     * Client half of the upload window: counts messages the server has not yet
+     * acknowledged and tracks the chunk size it last advertised.
+     */
+    private class UploadWindow {
+        private final int window;
+        private int chunkSize;
+        private long sent = 0;
+        private long acked = 0;
+        
+        UploadWindow(int chunkSize, int window) {
+            this.chunkSize = chunkSize;
+            this.window = window;
+        }
+        
+        /**
+         * Wait for credit before sending past the window.
+         * @return false if the server reported an error; the upload has been aborted
+         */
+        boolean awaitCredit() throws IOException, ClassNotFoundException {
+            while (sent - acked >= window) {
+                String ack = (String) channel.readObject();
+                long count = parseAck(ack, acked);
+                if (count < 0) {
+                    System.out.println("Error during upload: " + ack);
+                    if (window > 1) {
+                        channel.writeObject("ABORT");
+                    }
+                    return false;
+                }
+                acked = count;
                 
-                chunkCount++;
-                System.out.println("Sent chunk " + chunkCount + " (" + bytesRead + " bytes)");
+                // The server may retune the chunk size with each ACK
+                int nextChunkSize = parseAckChunkSize(ack);
+                if (nextChunkSize > 0 && nextChunkSize != chunkSize) {
+                    chunkSize = nextChunkSize;
+                    System.out.println("Chunk size adjusted to " + nextChunkSize + " bytes");
+                }
             }
+            return true;
+        }
+        
+        void sent() {
+            sent++;
+        }
+        
+        long getSent() {
+            return sent;
+        }
+        
+        int getChunkSize() {
+            return chunkSize;
+        }
+        
+        /**
+         * Send COMPLETE and print the final result, skipping acknowledgements still in flight.
+         */
+        void complete() throws IOException, ClassNotFoundException {
+            channel.writeObject("COMPLETE");
             
-            fis.close();
-            
-            // Send completion message
-            out.writeObject("COMPLETE");
-            
-            // Get final result
-            String result = (String) in.readObject();
+            String result = (String) channel.readObject();
+            while (parseAck(result, acked) >= 0) {
+                result = (String) channel.readObject();
+            }
             System.out.println(result);
         }
     }
     
+    /**
+     * @return chunks acknowledged so far after this message, or -1 if it is not an ACK
+     */
+    private static long parseAck(String message, long chunksAcked) {
+        if (message.equals("ACK")) {
+            return chunksAcked + 1;
+        }
+        if (message.startsWith("ACK:")) {
+            return Long.parseLong(message.substring(4).split(":")[0]);
+        }
+        return -1;
+    }
+    
+    /**
+     * @return the chunk size advertised in ACK:<chunks>:<chunkSize>, or -1 if none
+     */
+    private static int parseAckChunkSize(String message) {
+        String[] parts = message.split(":");
+        return parts.length > 2 && parts[0].equals("ACK") ? Integer.parseInt(parts[2]) : -1;
+    }
+    
+    /**
+     * Show a listing the server pages out, fetching pages as the user asks for them.
+     * @param prompt shown after each page; '>' and '?' are handled here
+     * @return the first other input, once the server has been told the listing is done
+     */
+    private String browseFiles(String prompt) throws IOException, ClassNotFoundException {
+        ListingQuery query = new ListingQuery();
+        String nextCursor = fetchPage(query);
+        while (true) {
+            System.out.print(prompt);
+            String input = scanner.nextLine();
+            if (input.trim().equals(">")) {
+                if (nextCursor.isEmpty()) {
+                    System.out.println("No more files.");
+                    continue;
+                }
+                query.setCursor(nextCursor);
+                nextCursor = fetchPage(query);
+            } else if (input.trim().equals("?")) {
+                editQuery(query);
+                query.setCursor("");
+                nextCursor = fetchPage(query);
+            } else {
+                channel.writeObject(ListingQuery.DONE);
+                return input;
+            }
+        }
+    }
+    
+    // Print one page; returns the cursor of the next page, or "" after the last one
+    private String fetchPage(ListingQuery query) throws IOException, ClassNotFoundException {
+        channel.writeObject(query.encode());
+        String page = (String) channel.readObject();
+        String nextCursor = (String) channel.readObject();
+        System.out.println(page);
+        System.out.println("[" + query.describe() + (nextCursor.isEmpty() ? "" : ", more with '>'") + "]");
+        return nextCursor;
+    }
+    
+    private void editQuery(ListingQuery query) {
+        System.out.print("File name starts with (Enter for any): ");
+        query.setNamePrefix(scanner.nextLine().trim());
+        System.out.print("Owner (Enter for any): ");
+        query.setOwner(scanner.nextLine().trim());
+        long minSize = readSize("Minimum size in bytes (Enter for none): ");
+        long maxSize = readSize("Maximum size in bytes (Enter for none): ");
+        query.setSizeRange(minSize, maxSize);
+        System.out.print("Sort by name, size or owner, '-' first for descending (Enter for " + query.getSort() + "): ");
+        String sort = scanner.nextLine().trim();
+        if (!sort.isEmpty()) {
+            try {
+                query.setSort(sort);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage() + ", keeping " + query.getSort());
+            }
+        }
+    }
+    
+    // A size bound, or -1 when left empty or invalid
+    private long readSize(String prompt) {
+        System.out.print(prompt);
+        String input = scanner.nextLine().trim();
+        if (input.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(input));
+        } catch (NumberFormatException e) {
+            System.out.println("Not a number, no bound set.");
+            return -1;
+        }
+    }
+    
     private void handleFileDownload() throws IOException, ClassNotFoundException {
         
-        String availableFiles = (String) in.readObject();
-        System.out.println(availableFiles);
-        
-        
-        System.out.print("\nEnter owner name (or 'cancel' to abort): ");
-        String ownerName = scanner.nextLine().trim();
+        String ownerName;
+        if (!channel.isLegacy()) {
+            ownerName = browseFiles("\nEnter owner name (or 'cancel' to abort, '>' next page, '?' filter or sort): ").trim();
+        } else {
+            String availableFiles = (String) channel.readObject();
+            System.out.println(availableFiles);
+            
+            System.out.print("\nEnter owner name (or 'cancel' to abort): ");
+            ownerName = scanner.nextLine().trim();
+        }
         
         if (ownerName.equalsIgnoreCase("cancel") || ownerName.isEmpty()) {
-            out.writeObject("CANCEL_DOWNLOAD");
-            String cancelMsg = (String) in.readObject();
+            channel.writeObject("CANCEL_DOWNLOAD");
+            String cancelMsg = (String) channel.readObject();
             System.out.println(cancelMsg);
             return;
         }
         
-        out.writeObject(ownerName);
+        channel.writeObject(ownerName);
         
         
         System.out.print("Enter file name: ");
@@ -329,10 +671,10 @@ public class Client {
             return;
         }
         
-        out.writeObject(fileName);
+        channel.writeObject(fileName);
         
         // Get server response
-        String response = (String) in.readObject();
+        String response = (String) channel.readObject();
         
         if (response.startsWith("ERROR:")) {
             System.out.println(response.substring(6));
@@ -340,7 +682,10 @@ public class Client {
         }
         
         if (response.startsWith("DOWNLOAD_APPROVED:")) {
-            long fileSize = Long.parseLong(response.substring(18));
+            // DOWNLOAD_APPROVED:<size>[:<content id>]; legacy servers send no content id
+            String[] approval = response.substring(18).split(":");
+            long fileSize = Long.parseLong(approval[0]);
+            String contentId = approval.length > 1 ? approval[1] : null;
             
             
             System.out.print("Enter download path (directory): ");
@@ -360,51 +705,293 @@ public class Client {
             String outputPath = downloadDir + java.io.File.separator + fileName;
             java.io.File outputFile = new java.io.File(outputPath);
             
-            System.out.println("Downloading " + fileName + " (" + fileSize + " bytes)...");
+            // Legacy servers stream the whole file inline right after the approval
+            if (channel.isLegacy()) {
+                System.out.println("Downloading " + fileName + " (" + fileSize + " bytes)...");
+                receiveFileInline(outputFile, 0, fileSize);
+                return;
+            }
             
-            try (java.io.FileOutputStream fos = new java.io.FileOutputStream(outputFile)) {
-                long totalReceived = 0;
-                int chunkCount = 0;
+            // A shorter file left by an interrupted download can be continued, but only if
+            // the marker beside it shows it was started against the same content
+            java.io.File resumeMarker = new java.io.File(outputPath + RESUME_MARKER_SUFFIX);
+            long offset = 0;
+            if (outputFile.exists() && outputFile.length() > 0 && outputFile.length() < fileSize) {
+                if (contentId != null && contentId.equals(readResumeMarker(resumeMarker))) {
+                    System.out.print("Partial download found (" + outputFile.length() + " of " + fileSize +
+                                     " bytes). Resume? (yes/no): ");
+                    if (scanner.nextLine().trim().equalsIgnoreCase("yes")) {
+                        offset = outputFile.length();
+                    }
+                } else {
+                    System.out.println("Partial download found, but the file has changed on the server since; " +
+                                       "downloading it again.");
+                }
+            }
+            if (contentId != null) {
+                writeResumeMarker(resumeMarker, contentId);
+            }
+            
+            System.out.println((offset > 0 ? "Resuming " : "Downloading ") + fileName + " (" + fileSize + " bytes)...");
+            
+            String rangeSuffix = offset > 0 ? ":" + offset : "";
+            boolean completed;
+            if (INLINE_DOWNLOADS) {
+                channel.writeObject("DOWNLOAD_MODE:INLINE" + rangeSuffix);
+                completed = receiveFileInline(outputFile, offset, fileSize);
+            } else if (DOWNLOAD_STREAMS > 1) {
+                // Servers that speak the framed protocol can split the download across streams
+                channel.writeObject("DOWNLOAD_MODE:PARALLEL:" + offset + ":" + (fileSize - offset) + ":" + DOWNLOAD_STREAMS);
+                completed = receiveFileOverDataChannels(outputFile, offset, fileSize);
+            } else {
+                channel.writeObject("DOWNLOAD_MODE:DATA" + rangeSuffix);
+                completed = receiveFileOverDataChannel(outputFile, offset, fileSize);
+            }
+            if (completed) {
+                resumeMarker.delete();
+            }
+        }
+    }
+    
+    // Content id a partial download was started against, kept in <file>.resume until it completes
+    private static String readResumeMarker(java.io.File marker) {
+        try {
+            return new String(Files.readAllBytes(marker.toPath()), StandardCharsets.US_ASCII).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private static void writeResumeMarker(java.io.File marker, String contentId) {
+        try {
+            Files.write(marker.toPath(), contentId.getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            System.err.println("Could not record download for resume: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * @return true once the whole file has been received
+     */
+    private boolean receiveFileInline(java.io.File outputFile, long offset, long fileSize) throws IOException, ClassNotFoundException {
+        try (java.io.FileOutputStream fos = new java.io.FileOutputStream(outputFile, offset > 0)) {
+            long totalReceived = offset;
+            int chunkCount = 0;
+            
+            while (true) {
+                Object obj = channel.readPooled();
                 
-                while (true) {
-                    Object obj = in.readObject();
+                if (obj instanceof String) {
+                    String msg = (String) obj;
+                    if (msg.equals("DOWNLOAD_COMPLETE")) {
+                        System.out.println("\nDownload completed successfully!");
+                        System.out.println("File saved to: " + outputFile.getAbsolutePath());
+                        return true;
+                    } else if (msg.startsWith("ERROR:")) {
+                        System.out.println("Download error: " + msg.substring(6));
+                        System.out.println("Partial file kept; download it again to resume.");
+                        return false;
+                    }
+                } else if (obj instanceof ByteBuffer) {
+                    ByteBuffer chunk = (ByteBuffer) obj;
+                    int size = chunk.remaining();
+                    try {
+                        fos.write(chunk.array(), chunk.arrayOffset() + chunk.position(), size);
+                    } finally {
+                        BufferPool.release(chunk);
+                    }
+                    totalReceived += size;
+                    chunkCount++;
                     
-                    if (obj instanceof String) {
-                        String msg = (String) obj;
-                        if (msg.equals("DOWNLOAD_COMPLETE")) {
-                            System.out.println("\nDownload completed successfully!");
-                            System.out.println("File saved to: " + outputFile.getAbsolutePath());
-                            break;
-                        } else if (msg.startsWith("ERROR:")) {
-                            System.out.println("Download error: " + msg.substring(6));
-                            outputFile.delete();
-                            return;
-                        }
-                    } else if (obj instanceof byte[]) {
-                        byte[] chunk = (byte[]) obj;
-                        fos.write(chunk);
-                        totalReceived += chunk.length;
-                        chunkCount++;
-                        
-                        
-                        int progress = (int) ((totalReceived * 100) / fileSize);
-                        System.out.print("\rProgress: " + progress + "% (" + chunkCount + " chunks)");
+                    
+                    int progress = fileSize == 0 ? 100 : (int) ((totalReceived * 100) / fileSize);
+                    System.out.print("\rProgress: " + progress + "% (" + chunkCount + " chunks)");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("\nError writing file: " + e.getMessage());
+        }
+        return false;
+    }
+    
+    private boolean receiveFileOverDataChannel(java.io.File outputFile, long offset, long fileSize) throws IOException, ClassNotFoundException {
+        String reply = (String) channel.readObject();
+        if (!reply.startsWith("DATA_CHANNEL:")) {
+            System.out.println("Download error: " + (reply.startsWith("ERROR:") ? reply.substring(6) : reply));
+            return false;
+        }
+        // DATA_CHANNEL:<port>:<token>[:deflate]
+        String[] parts = reply.substring(13).split(":");
+        int dataPort = Integer.parseInt(parts[0]);
+        String token = parts[1];
+        boolean compressed = parts.length > 2 && parts[2].equals(Compression.DEFLATE);
+        
+        // Pull the raw bytes straight from the socket into the file
+        long totalReceived = offset;
+        try (SocketChannel dataChannel = SocketChannel.open(new InetSocketAddress(SERVER_ADDRESS, dataPort));
+             FileChannel fileChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE)) {
+            // Keep the bytes already downloaded; drop anything beyond them
+            fileChannel.truncate(offset);
+            ByteBuffer tokenBuffer = ByteBuffer.wrap(token.getBytes(StandardCharsets.US_ASCII));
+            while (tokenBuffer.hasRemaining()) {
+                dataChannel.write(tokenBuffer);
+            }
+            
+            if (compressed) {
+                totalReceived += Compression.inflateRange(dataChannel, fileChannel, offset, fileSize - offset,
+                        written -> System.out.print("\rProgress: " + (int) (((offset + written) * 100) / fileSize) + "%"));
+            }
+            while (totalReceived < fileSize) {
+                long received = fileChannel.transferFrom(dataChannel, totalReceived, fileSize - totalReceived);
+                if (received <= 0) {
+                    break;
+                }
+                totalReceived += received;
+                int progress = (int) ((totalReceived * 100) / fileSize);
+                System.out.print("\rProgress: " + progress + "%");
+            }
+        } catch (IOException e) {
+            System.err.println("\nError receiving file: " + e.getMessage());
+        }
+        
+        String status = (String) channel.readObject();
+        if (status.equals("DOWNLOAD_COMPLETE") && totalReceived == fileSize) {
+            System.out.println("\nDownload completed successfully!");
+            System.out.println("File saved to: " + outputFile.getAbsolutePath());
+            return true;
+        }
+        System.out.println("\nDownload error: " + (status.startsWith("ERROR:") ? status.substring(6) : "incomplete transfer"));
+        System.out.println("Partial file kept; download it again to resume.");
+        return false;
+    }
+    
+    private boolean receiveFileOverDataChannels(java.io.File outputFile, long offset, long fileSize) throws IOException, ClassNotFoundException {
+        String reply = (String) channel.readObject();
+        if (!reply.startsWith("DATA_CHANNELS:")) {
+            System.out.println("Download error: " + (reply.startsWith("ERROR:") ? reply.substring(6) : reply));
+            return false;
+        }
+        // DATA_CHANNELS:<port>:[deflate:]<token>,<offset>,<length>;...
+        String[] parts = reply.substring(14).split(":");
+        int dataPort = Integer.parseInt(parts[0]);
+        boolean compressed = parts.length > 2 && parts[1].equals(Compression.DEFLATE);
+        String[] ranges = parts[parts.length - 1].split(";");
+        
+        String[] tokens = new String[ranges.length];
+        long[] starts = new long[ranges.length];
+        long[] lengths = new long[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            String[] range = ranges[i].split(",");
+            tokens[i] = range[0];
+            starts[i] = Long.parseLong(range[1]);
+            lengths[i] = Long.parseLong(range[2]);
+        }
+        AtomicLongArray received = new AtomicLongArray(ranges.length);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        
+        try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+            // Preallocate so every stream writes its range in place
+            raf.setLength(fileSize);
+            FileChannel fileChannel = raf.getChannel();
+            
+            List<Thread> streams = new ArrayList<>();
+            for (int i = 0; i < ranges.length; i++) {
+                int index = i;
+                Thread stream = new Thread(() -> {
+                    try {
+                        fetchRange(dataPort, tokens[index], compressed, fileChannel, starts[index], lengths[index],
+                                   received, index);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
                     }
+                }, "download-stream-" + i);
+                stream.start();
+                streams.add(stream);
+            }
+            System.out.println("Using " + streams.size() + " parallel stream(s)");
+            
+            for (Thread stream : streams) {
+                while (stream.isAlive()) {
+                    try {
+                        stream.join(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Download interrupted");
+                    }
+                    long totalReceived = offset;
+                    for (int i = 0; i < ranges.length; i++) {
+                        totalReceived += received.get(i);
+                    }
+                    int progress = fileSize == 0 ? 100 : (int) ((totalReceived * 100) / fileSize);
+                    System.out.print("\rProgress: " + progress + "%");
+                }
+            }
+            
+            boolean complete = failure.get() == null;
+            for (int i = 0; i < ranges.length; i++) {
+                complete &= received.get(i) == lengths[i];
+            }
+            
+            String status = (String) channel.readObject();
+            if (status.equals("DOWNLOAD_COMPLETE") && complete) {
+                System.out.println("\nDownload completed successfully!");
+                System.out.println("File saved to: " + outputFile.getAbsolutePath());
+                return true;
+            }
+            
+            String error = status.startsWith("ERROR:") ? status.substring(6)
+                    : failure.get() != null ? failure.get().getMessage() : "incomplete transfer";
+            System.out.println("\nDownload error: " + error);
+            
+            // Keep only the contiguous prefix, so a later download can resume from its end
+            long prefix = offset;
+            for (int i = 0; i < ranges.length; i++) {
+                prefix += received.get(i);
+                if (received.get(i) < lengths[i]) {
+                    break;
+                }
+            }
+            raf.setLength(prefix);
+            System.out.println("Partial file kept; download it again to resume.");
+            return false;
+        }
+    }
+    
+    private static void fetchRange(int dataPort, String token, boolean compressed, FileChannel fileChannel, long start,
+                                   long length, AtomicLongArray received, int index) throws IOException {
+        try (SocketChannel dataChannel = SocketChannel.open(new InetSocketAddress(SERVER_ADDRESS, dataPort))) {
+            ByteBuffer tokenBuffer = ByteBuffer.wrap(token.getBytes(StandardCharsets.US_ASCII));
+            while (tokenBuffer.hasRemaining()) {
+                dataChannel.write(tokenBuffer);
+            }
+            
+            if (compressed) {
+                Compression.inflateRange(dataChannel, fileChannel, start, length, written -> received.set(index, written));
+                return;
+            }
+            
+            // Positional transfers, so streams never contend for the file position
+            long done = 0;
+            while (done < length) {
+                long count = fileChannel.transferFrom(dataChannel, start + done, length - done);
+                if (count <= 0) {
+                    break;
                 }
-            } catch (IOException e) {
-                System.err.println("\nError writing file: " + e.getMessage());
+                done += count;
+                received.set(index, done);
             }
         }
     }
     
     private void handleFileRequest() throws IOException, ClassNotFoundException {
         
-        String prompt1 = (String) in.readObject();
+        String prompt1 = (String) channel.readObject();
         if (prompt1.equals("ENTER_DESCRIPTION")) {
             System.out.print("Enter file description: ");
             String description = scanner.nextLine();
-            out.writeObject(description);
-            out.flush();
+            channel.writeObject(description);
+            channel.flush();
         } else {
             
             System.out.println(prompt1);
@@ -412,12 +999,12 @@ public class Client {
         }
         
         // Get recipient prompt or error
-        String prompt2 = (String) in.readObject();
+        String prompt2 = (String) channel.readObject();
         if (prompt2.equals("ENTER_RECIPIENT")) {
             System.out.print("Enter recipient username (or 'ALL' for broadcast): ");
             String recipient = scanner.nextLine();
-            out.writeObject(recipient);
-            out.flush();
+            channel.writeObject(recipient);
+            channel.flush();
         } else if (prompt2.startsWith("ERROR:")) {
             // Server returned early with error
             System.out.println("\nError: " + prompt2.substring(6));
@@ -429,7 +1016,7 @@ public class Client {
         }
         
         // Get result
-        String result = (String) in.readObject();
+        String result = (String) channel.readObject();
         if (result.startsWith("SUCCESS:")) {
             System.out.println("\n" + result.substring(8));
         } else if (result.startsWith("ERROR:")) {
@@ -440,7 +1027,7 @@ public class Client {
     }
     
     private void handleViewUnreadMessages() throws IOException, ClassNotFoundException {
-        String status = (String) in.readObject();
+        String status = (String) channel.readObject();
         
         if (status.equals("NO_MESSAGES")) {
             System.out.println("\nNo unread messages.\n");
@@ -448,11 +1035,11 @@ public class Client {
         }
         
         if (status.equals("UNREAD_MESSAGES")) {
-            int count = (int) in.readObject();
+            int count = (int) channel.readObject();
             System.out.println("\n=== Unread Messages (" + count + ") ===");
             
             for (int i = 0; i < count; i++) {
-                String message = (String) in.readObject();
+                String message = (String) channel.readObject();
                 System.out.println("\n" + (i + 1) + ". " + message);
             }
             
@@ -462,7 +1049,7 @@ public class Client {
     }
     
     private void handleViewReadMessages() throws IOException, ClassNotFoundException {
-        String status = (String) in.readObject();
+        String status = (String) channel.readObject();
         
         if (status.equals("NO_MESSAGES")) {
             System.out.println("\nNo read messages.\n");
@@ -470,11 +1057,11 @@ public class Client {
         }
         
         if (status.equals("READ_MESSAGES")) {
-            int count = (int) in.readObject();
+            int count = (int) channel.readObject();
             System.out.println("\n=== Read Messages (" + count + ") ===");
             
             for (int i = 0; i < count; i++) {
-                String message = (String) in.readObject();
+                String message = (String) channel.readObject();
                 System.out.println("\n" + (i + 1) + ". " + message);
             }
             
@@ -483,7 +1070,7 @@ public class Client {
     }
     
     private void handleViewHistory() throws IOException, ClassNotFoundException {
-        String status = (String) in.readObject();
+        String status = (String) channel.readObject();
         
         if (status.equals("NO_HISTORY")) {
             System.out.println("\nNo activity history.\n");
@@ -491,11 +1078,11 @@ public class Client {
         }
         
         if (status.equals("ACTIVITY_HISTORY")) {
-            int count = (int) in.readObject();
+            int count = (int) channel.readObject();
             System.out.println("\n=== Activity History (" + count + " entries) ===");
             
             for (int i = 0; i < count; i++) {
-                String activity = (String) in.readObject();
+                String activity = (String) channel.readObject();
                 System.out.println("\n" + (i + 1) + ". " + activity);
             }
             
@@ -506,8 +1093,7 @@ public class Client {
     private void cleanup() {
         try {
             if (scanner != null) scanner.close();
-            if (out != null) out.close();
-            if (in != null) in.close();
+            if (channel != null) channel.close();
             if (socket != null) socket.close();
 
             try {
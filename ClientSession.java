@@ -0,0 +1,44 @@
+package FileServer;
+
+/**
+ * One client connection as seen by a ConnectionEngine.
+ * A session is driven step by step so an engine can park it between
+ * requests instead of dedicating a blocked thread to it.
+ */
+public interface ClientSession {
+
+    /**
+     * Set up the streams and run the opening exchange (login, first prompt).
+     * @return false if the session should be closed right away
+     */
+    boolean open();
+
+    /**
+     * Read and serve the next request from the client.
+     * Called once the client has sent something; may block until the request is handled.
+     * @return false once the session is over
+     */
+    boolean serveNext();
+
+    /**
+     * Release the connection and any server-side state tied to it.
+     */
+    void close();
+
+    /**
+     * Drive a session to completion on the calling thread.
+     */
+    static void runToCompletion(ClientSession session) {
+        try {
+            if (session.open()) {
+                while (session.serveNext()) {
+                    // keep serving until the client logs out or disconnects
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Session failed: " + e);
+        } finally {
+            session.close();
+        }
+    }
+}
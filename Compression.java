@@ -0,0 +1,207 @@
+package FileServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression for file data, negotiated per session at login.
+ * Uses the fastest deflate level: the aim is throughput on slow links, not ratio.
+ * Content that is already compressed is detected by extension or by test-compressing
+ * a sample, and sent as is.
+ */
+public class Compression {
+    public static final String DEFLATE = "deflate";
+    public static final String NONE = "none";
+
+    // Enabled unless -Dfileserver.compression=none
+    public static final boolean ENABLED = !NONE.equalsIgnoreCase(System.getProperty("fileserver.compression", DEFLATE));
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // Compress only if the sample shrinks below this fraction
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "mov", "avi", "webm",
+            "pdf", "docx", "xlsx", "pptx", "jar", "apk"));
+
+    /**
+     * Per-file heuristic: skip known compressed formats, otherwise test a sample.
+     * @param fileName name used for the extension check (stored blobs have none)
+     */
+    public static boolean worthCompressing(String fileName, File content) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(content.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, channel.size()));
+            while (sample.hasRemaining() && channel.read(sample) > 0) {
+                // keep reading
+            }
+            if (sample.position() == 0) {
+                return false;
+            }
+            byte[] compressed = deflate(sample.array(), 0, sample.position());
+            return compressed != null && compressed.length < sample.position() * MAX_SAMPLE_RATIO;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the deflated bytes, or null if they would not be smaller than the input
+     */
+    public static byte[] deflate(byte[] data, int offset, int length) {
+        byte[] out = new byte[length];
+        int size = deflate(data, offset, length, out);
+        return size >= 0 ? Arrays.copyOf(out, size) : null;
+    }
+
+    /**
+     * Deflate into the start of out, which must hold at least length bytes.
+     * @return the deflated size, or -1 if it would not be smaller than the input
+     */
+    public static int deflate(byte[] data, int offset, int length, byte[] out) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished() && size < length) {
+                size += deflater.deflate(out, size, length - size);
+            }
+            return deflater.finished() && size < length ? size : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflate into the start of out, which must hold at least originalLength bytes.
+     */
+    public static void inflate(byte[] data, int offset, int length, byte[] out, int originalLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            int size = 0;
+            while (size < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(out, size, originalLength - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+            if (size != originalLength) {
+                throw new IOException("Corrupt compressed data");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Data channel, sending side: stream a file range through a deflater.
+     * @return bytes of the file sent
+     */
+    public static long deflateRange(FileChannel file, long offset, long length, WritableByteChannel out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            OutputStream stream = new DeflaterOutputStream(Channels.newOutputStream(out), deflater, STREAM_BUFFER_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                stream.write(buffer.array(), 0, read);
+                position += read;
+            }
+            ((DeflaterOutputStream) stream).finish();
+            stream.flush();
+            return position - offset;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Data channel, sending side: stream the remaining bytes of a buffer through a deflater.
+     * @return bytes of the buffer sent
+     */
+    public static long deflateRange(ByteBuffer data, WritableByteChannel out) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream stream = new DeflaterOutputStream(Channels.newOutputStream(out), deflater, STREAM_BUFFER_SIZE);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long sent = 0;
+            while (data.hasRemaining()) {
+                int length = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, length);
+                stream.write(buffer, 0, length);
+                sent += length;
+            }
+            stream.finish();
+            stream.flush();
+            return sent;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Data channel, receiving side: inflate a stream into a file range with positional writes.
+     * @return bytes written
+     */
+    public static long inflateRange(ReadableByteChannel in, FileChannel file, long offset, long length,
+                                    LongConsumer progress) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            InputStream stream = new InflaterInputStream(Channels.newInputStream(in), inflater, STREAM_BUFFER_SIZE);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long written = 0;
+            while (written < length) {
+                int read = stream.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+                if (read < 0) {
+                    break;
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    file.write(chunk, offset + written + chunk.position());
+                }
+                written += read;
+                progress.accept(written);
+            }
+            return written;
+        } finally {
+            inflater.end();
+        }
+    }
+}
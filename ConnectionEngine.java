@@ -0,0 +1,33 @@
+package FileServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.function.Function;
+
+/**
+ * Strategy for accepting connections and scheduling their sessions.
+ * Selected with -Dfileserver.engine=threads|virtual|selector.
+ */
+public interface ConnectionEngine {
+
+    /**
+     * Accept connections on the channel until it is closed, creating a session for each one.
+     * Blocks the calling thread.
+     */
+    void serve(ServerSocketChannel serverChannel, Function<Socket, ClientSession> sessionFactory) throws IOException;
+
+    static ConnectionEngine create(String name) {
+        switch (name.toLowerCase()) {
+            case "virtual":
+                return new ThreadEngine(true);
+            case "selector":
+                return new SelectorEngine();
+            case "threads":
+                return new ThreadEngine(false);
+            default:
+                System.err.println("Unknown connection engine '" + name + "', using threads");
+                return new ThreadEngine(false);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package FileServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Command channel between Worker and Client.
+ * Values are Strings, byte[] chunks, Longs, Integers and Booleans, exchanged either
+ * as serialized Java objects (legacy) or as binary frames, chosen when the client connects.
+ */
+public interface ControlChannel extends Closeable {
+
+    void writeObject(Object value) throws IOException;
+
+    Object readObject() throws IOException, ClassNotFoundException;
+
+    /**
+     * Write the remaining bytes of the buffer as a byte[] value. The buffer can be
+     * reused as soon as this returns.
+     * Legacy streams need a fresh array per chunk: ObjectOutputStream would send a
+     * back-reference instead of the contents for an array it has seen before.
+     */
+    default void writeBuffer(ByteBuffer data) throws IOException {
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        writeObject(copy);
+    }
+
+    /**
+     * Write an upload chunk: a CHUNK marker followed by the remaining bytes of the buffer.
+     * The buffer can be reused as soon as this returns. Text that happens to read "CHUNK"
+     * goes through writeObject and is never taken for a marker.
+     */
+    default void writeChunk(ByteBuffer data) throws IOException {
+        writeObject("CHUNK");
+        writeBuffer(data);
+    }
+
+    /**
+     * Like readObject, except that a byte[] value is returned as a ByteBuffer,
+     * which the caller hands back with BufferPool.release once done with it.
+     */
+    default Object readPooled() throws IOException, ClassNotFoundException {
+        Object value = readObject();
+        return value instanceof byte[] ? ByteBuffer.wrap((byte[]) value) : value;
+    }
+
+    /**
+     * Read the byte[] value the protocol says comes next (the data after a CHUNK marker)
+     * as a ByteBuffer, to be handed back with BufferPool.release once done with it.
+     * Legacy streams read it unshared, so the chunk is not retained by the stream.
+     */
+    default ByteBuffer readChunk() throws IOException, ClassNotFoundException {
+        Object value = readPooled();
+        if (!(value instanceof ByteBuffer)) {
+            throw new StreamCorruptedException("Expected chunk data, got " + value);
+        }
+        return (ByteBuffer) value;
+    }
+
+    void flush() throws IOException;
+
+    /**
+     * True for the Java-serialization protocol spoken by older clients.
+     */
+    boolean isLegacy();
+
+    /**
+     * Compress byte[] values written from now on, where it pays off.
+     * Only call this once the peer has agreed to compression; reading needs no setting.
+     */
+    default void setCompression(boolean enabled) {
+        // Legacy streams carry raw chunks
+    }
+
+    /**
+     * Server side of the handshake: a framed client opens with FramedControlChannel.MAGIC,
+     * a legacy client with the ObjectOutputStream stream header.
+     */
+    static ControlChannel accept(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] hello = new byte[FramedControlChannel.MAGIC.length];
+        new DataInputStream(in).readFully(hello);
+
+        if (Arrays.equals(hello, FramedControlChannel.MAGIC)) {
+            FramedControlChannel channel = new FramedControlChannel(socket);
+            channel.sendHello();
+            return channel;
+        }
+
+        // Replay the bytes already consumed so ObjectInputStream sees its stream header
+        InputStream replay = new SequenceInputStream(new ByteArrayInputStream(hello), in);
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        return new ObjectControlChannel(out, new ObjectInputStream(replay));
+    }
+}
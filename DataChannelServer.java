@@ -0,0 +1,253 @@
+package FileServer;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw socket channel for bulk file data.
+ * The control channel registers a transfer under a one-time token, the client
+ * connects to the data port and sends the token, and the file bytes are then
+ * pushed with FileChannel.transferTo so they never pass through the heap.
+ * Compressed transfers trade that for a deflate stream over the same socket.
+ * Files held in the mapped-file cache are written from their mapping instead.
+ */
+public class DataChannelServer {
+    private static final int TOKEN_LENGTH = 36; // UUID string
+    // Largest transferTo call, so throttled transfers are paced in small steps
+    private static final long TRANSFER_QUANTUM = 256 * 1024;
+    // A connection that has not sent its token by then is dropped
+    private static final int TOKEN_TIMEOUT_MS = 10_000;
+    // Handler threads, and accepted connections that may wait for one; beyond that they are refused
+    private static final int MAX_HANDLERS = 256;
+    private static final int MAX_WAITING = 256;
+
+    // Registered transfers, from expect() until they are cancelled or finish sending
+    private final Map<String, PendingTransfer> pending = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor handlers = new ThreadPoolExecutor(MAX_HANDLERS, MAX_HANDLERS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_WAITING), task -> {
+                Thread thread = new Thread(task, "data-channel");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public DataChannelServer() {
+        handlers.allowCoreThreadTimeOut(true);
+    }
+
+    private static class PendingTransfer {
+        final File file;
+        final ByteBuffer mapped;
+        final long offset;
+        final long length;
+        final boolean compress;
+        final TransferScheduler.Ticket ticket;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        // Set once the client has claimed the transfer
+        SocketChannel socket;
+
+        PendingTransfer(File file, ByteBuffer mapped, long offset, long length, boolean compress,
+                        TransferScheduler.Ticket ticket) {
+            this.file = file;
+            this.mapped = mapped;
+            this.offset = offset;
+            this.length = length;
+            this.compress = compress;
+            this.ticket = ticket;
+        }
+
+        // A cancelled transfer can no longer be claimed, and a claimed one no longer cancelled
+        synchronized boolean claim(SocketChannel socket) {
+            if (result.isDone()) {
+                return false;
+            }
+            this.socket = socket;
+            return true;
+        }
+
+        synchronized boolean cancel() {
+            if (socket != null) {
+                return false;
+            }
+            result.completeExceptionally(new IOException("Transfer cancelled"));
+            return true;
+        }
+
+        synchronized SocketChannel claimedBy() {
+            return socket;
+        }
+    }
+
+    public void start(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        System.out.println("Data channel server started on port " + port);
+
+        Thread acceptThread = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    try {
+                        handlers.execute(() -> handle(channel));
+                    } catch (RejectedExecutionException e) {
+                        System.err.println("Data channel: too many connections, refusing one");
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Data channel server error: " + e.getMessage());
+                    break;
+                }
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Register a transfer under a token.
+     * The future completes with the number of bytes sent once the client has fetched the range.
+     * @param mapped the file's mapping if it is cached, otherwise null
+     * @param ticket  the transfer's slot, whose bandwidth share paces the sending
+     */
+    public CompletableFuture<Long> expect(String token, File file, ByteBuffer mapped, long offset, long length,
+                                          boolean compress, TransferScheduler.Ticket ticket) {
+        PendingTransfer transfer = new PendingTransfer(file, mapped, offset, length, compress, ticket);
+        pending.put(token, transfer);
+        return transfer.result;
+    }
+
+    /**
+     * Withdraw a transfer the client has not claimed yet.
+     * Returns false if the client already connected and the transfer is under way.
+     */
+    public boolean cancel(String token) {
+        PendingTransfer transfer = pending.get(token);
+        if (transfer == null || !transfer.cancel()) {
+            return false;
+        }
+        pending.remove(token, transfer);
+        return true;
+    }
+
+    /**
+     * Stop a transfer whether or not the client has claimed it, and wait until it
+     * no longer sends, so its ticket can be released safely.
+     */
+    public void abort(String token) {
+        PendingTransfer transfer = pending.get(token);
+        if (transfer == null || cancel(token)) {
+            return;
+        }
+        try {
+            // Shutting down output makes the sending thread fail out of its write, even out of
+            // a transferTo blocked in the kernel, which a close alone does not wake
+            SocketChannel socket = transfer.claimedBy();
+            if (socket != null) {
+                socket.shutdownOutput();
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Data channel: error aborting transfer: " + e.getMessage());
+        }
+        try {
+            transfer.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Expected: the transfer fails once its socket is closed
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        String token = null;
+        PendingTransfer transfer = null;
+        try (SocketChannel socket = channel) {
+            // Read the token through the socket's stream, which honours SO_TIMEOUT
+            byte[] tokenBytes = new byte[TOKEN_LENGTH];
+            socket.socket().setSoTimeout(TOKEN_TIMEOUT_MS);
+            try {
+                new DataInputStream(socket.socket().getInputStream()).readFully(tokenBytes);
+            } catch (EOFException | SocketTimeoutException e) {
+                return;
+            }
+            token = new String(tokenBytes, StandardCharsets.US_ASCII);
+            PendingTransfer claimed = pending.get(token);
+            if (claimed == null || !claimed.claim(socket)) {
+                System.err.println("Data channel: unknown transfer token");
+                return;
+            }
+            transfer = claimed;
+
+            if (transfer.mapped != null) {
+                transfer.result.complete(sendMapped(transfer, socket));
+                return;
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(transfer.file.toPath(), StandardOpenOption.READ)) {
+                if (transfer.compress) {
+                    transfer.result.complete(Compression.deflateRange(fileChannel, transfer.offset, transfer.length,
+                                                                      transfer.ticket.paced(socket)));
+                    return;
+                }
+
+                long position = transfer.offset;
+                long end = transfer.offset + transfer.length;
+                while (position < end) {
+                    long sent = fileChannel.transferTo(position, Math.min(end - position, TRANSFER_QUANTUM), socket);
+                    if (sent <= 0 && position >= fileChannel.size()) {
+                        break;
+                    }
+                    position += sent;
+                    transfer.ticket.pace((int) sent);
+                }
+                transfer.result.complete(position - transfer.offset);
+            }
+        } catch (IOException e) {
+            if (transfer != null) {
+                transfer.result.completeExceptionally(e);
+            }
+            System.err.println("Data channel transfer error: " + e.getMessage());
+        } finally {
+            if (transfer != null) {
+                pending.remove(token, transfer);
+                // No-op unless the transfer ended without an outcome, so abort() never waits forever
+                transfer.result.completeExceptionally(new IOException("Transfer ended"));
+            }
+        }
+    }
+
+    private static long sendMapped(PendingTransfer transfer, SocketChannel socket) throws IOException {
+        // Parallel ranges share the mapping, so each works on its own view
+        ByteBuffer range = transfer.mapped.duplicate();
+        range.position((int) transfer.offset);
+        range.limit((int) (transfer.offset + transfer.length));
+        WritableByteChannel out = transfer.ticket.paced(socket);
+        if (transfer.compress) {
+            return Compression.deflateRange(range, out);
+        }
+        int end = range.limit();
+        while (range.position() < end) {
+            range.limit((int) Math.min(end, range.position() + TRANSFER_QUANTUM));
+            out.write(range);
+        }
+        return transfer.length;
+    }
+}
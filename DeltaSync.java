@@ -0,0 +1,255 @@
+package FileServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta transfer for replacing a file.
+ *
+ * The server splits the existing file into fixed-size blocks and sends a signature
+ * per full block: a rolling weak checksum and an MD5. The client slides a window over
+ * the new file, and wherever the weak and then the strong checksum match a block it
+ * sends COPY:<startBlock>:<blockCount> instead of the bytes. Everything else is sent
+ * as ordinary chunks. The server rebuilds the new file from both, in order.
+ */
+public class DeltaSync {
+    private static final int MIN_BLOCK_SIZE = 4 * 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    // Keeps the signature list small for large files
+    private static final long MAX_BLOCKS = 16 * 1024;
+    // Bytes per signature: weak checksum + MD5
+    private static final int SIGNATURE_SIZE = 4 + 16;
+
+    /**
+     * Receives the delta as the client scans the new file.
+     * Returning false stops the scan.
+     */
+    public interface Sink {
+        boolean copy(long startBlock, int blockCount) throws IOException;
+
+        // A view of the new file's bytes, valid only during the call
+        boolean literal(ByteBuffer data) throws IOException;
+
+        // Largest literal to send at once
+        int literalLimit();
+    }
+
+    public static int blockSizeFor(long fileLength) {
+        long size = Math.max(MIN_BLOCK_SIZE, (fileLength + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        return (int) Math.min(MAX_BLOCK_SIZE, size);
+    }
+
+    /**
+     * Server side: the file being replaced, kept open for the whole transfer so a
+     * concurrent replace cannot pull it away mid-copy.
+     */
+    public static class Base implements Closeable {
+        private final FileChannel channel;
+        private final int blockSize;
+        private final long blockCount;
+
+        public Base(File file, int blockSize) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.blockSize = blockSize;
+            // Only full blocks get signatures; a short tail is always resent
+            this.blockCount = channel.size() / blockSize;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public long getBlockCount() {
+            return blockCount;
+        }
+
+        public byte[] signatures() throws IOException {
+            MessageDigest md5 = md5();
+            ByteBuffer out = ByteBuffer.allocate((int) (blockCount * SIGNATURE_SIZE));
+            ByteBuffer block = BufferPool.acquire(blockSize);
+            try {
+                for (long i = 0; i < blockCount; i++) {
+                    readBlock(i, block);
+                    out.putInt(weakChecksum(block.array(), 0, blockSize));
+                    md5.update(block.array(), 0, blockSize);
+                    out.put(md5.digest());
+                }
+            } finally {
+                BufferPool.release(block);
+            }
+            return out.array();
+        }
+
+        public boolean hasBlocks(long startBlock, long count) {
+            return startBlock >= 0 && count > 0 && count <= blockCount - startBlock;
+        }
+
+        /**
+         * Read a block into the buffer, which must hold getBlockSize() bytes,
+         * leaving it ready to be drained.
+         */
+        public void readBlock(long index, ByteBuffer block) throws IOException {
+            block.clear().limit(blockSize);
+            long position = index * blockSize;
+            while (block.hasRemaining()) {
+                int read = channel.read(block, position + block.position());
+                if (read < 0) {
+                    throw new IOException("Base file shrank during delta transfer");
+                }
+            }
+            block.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Client side: scan the new file against the server's signatures, emitting
+     * copies for matched blocks and literals for the rest.
+     * @return false if the sink stopped the scan
+     */
+    public static boolean scan(ByteBuffer data, int blockSize, byte[] signatures, Sink sink) throws IOException {
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        ByteBuffer sigs = ByteBuffer.wrap(signatures);
+        int blockCount = signatures.length / SIGNATURE_SIZE;
+        byte[][] strong = new byte[blockCount][16];
+        for (int i = 0; i < blockCount; i++) {
+            int weak = sigs.getInt();
+            sigs.get(strong[i]);
+            blocksByWeak.computeIfAbsent(weak, k -> new ArrayList<>()).add(i);
+        }
+
+        MessageDigest md5 = md5();
+        int length = data.limit();
+        int pos = 0;
+        int literalStart = 0;
+        long copyStart = -1;
+        int copyCount = 0;
+
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+
+        while (pos + blockSize <= length) {
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = data.get(pos + i) & 0xff;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                rolling = true;
+            }
+
+            List<Integer> candidates = blocksByWeak.get((a & 0xffff) | (b << 16));
+            int match = -1;
+            if (candidates != null) {
+                ByteBuffer window = data.duplicate();
+                window.position(pos).limit(pos + blockSize);
+                md5.update(window);
+                byte[] digest = md5.digest();
+                for (int candidate : candidates) {
+                    if (MessageDigest.isEqual(digest, strong[candidate])) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+
+            if (match >= 0) {
+                if (!flushLiteral(data, literalStart, pos, sink)) {
+                    return false;
+                }
+                if (copyCount > 0 && copyStart + copyCount == match) {
+                    copyCount++;
+                } else {
+                    if (copyCount > 0 && !sink.copy(copyStart, copyCount)) {
+                        return false;
+                    }
+                    copyStart = match;
+                    copyCount = 1;
+                }
+                pos += blockSize;
+                literalStart = pos;
+                rolling = false;
+                continue;
+            }
+
+            // No match here: any pending copy ends, the byte becomes literal
+            if (copyCount > 0) {
+                if (!sink.copy(copyStart, copyCount)) {
+                    return false;
+                }
+                copyCount = 0;
+            }
+            if (pos + 1 - literalStart >= sink.literalLimit()) {
+                if (!flushLiteral(data, literalStart, pos + 1, sink)) {
+                    return false;
+                }
+                literalStart = pos + 1;
+            }
+
+            if (pos + blockSize < length) {
+                int out = data.get(pos) & 0xff;
+                int in = data.get(pos + blockSize) & 0xff;
+                a += in - out;
+                b += a - blockSize * out;
+            }
+            pos++;
+        }
+
+        if (copyCount > 0 && !sink.copy(copyStart, copyCount)) {
+            return false;
+        }
+        return flushLiteral(data, literalStart, length, sink);
+    }
+
+    private static boolean flushLiteral(ByteBuffer data, int from, int to, Sink sink) throws IOException {
+        while (from < to) {
+            int size = Math.min(to - from, sink.literalLimit());
+            ByteBuffer literal = data.duplicate();
+            literal.position(from).limit(from + size);
+            if (!sink.literal(literal)) {
+                return false;
+            }
+            from += size;
+        }
+        return true;
+    }
+
+    /**
+     * rsync's weak checksum: two 16-bit running sums packed into an int.
+     */
+    static int weakChecksum(byte[] block, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = block[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -1,16 +1,28 @@
 package FileServer;
 
 public class FileInfo {
+    private String owner;
     private String fileId;
     private String fileName;
     private long fileSize;
     private boolean isPublic;
+    private String blobHash;
     
-    public FileInfo(String fileId, String fileName, long fileSize, boolean isPublic) {
+    public FileInfo(String owner, String fileId, String fileName, long fileSize, boolean isPublic) {
+        this(owner, fileId, fileName, fileSize, isPublic, null);
+    }
+    
+    public FileInfo(String owner, String fileId, String fileName, long fileSize, boolean isPublic, String blobHash) {
+        this.owner = owner;
         this.fileId = fileId;
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.isPublic = isPublic;
+        this.blobHash = blobHash;
+    }
+    
+    public String getOwner() {
+        return owner;
     }
     
     public String getFileId() {
@@ -28,4 +40,9 @@ public class FileInfo {
     public boolean isPublic() {
         return isPublic;
     }
+    
+    // SHA-256 of the content in the blob store, or null for files stored under the owner's directory
+    public String getBlobHash() {
+        return blobHash;
+    }
 }
@@ -0,0 +1,304 @@
+package FileServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Append-only journal of file metadata (files.log).
+ *
+ * Record formats, with username and fileName URL-encoded so names may contain '|':
+ *   ADDE|username|fileId|fileName|fileSize|isPublic[|blobHash]
+ *   DELE|username|fileName                         (tombstone)
+ * Older records are read too: ADD and DEL with the names unencoded, and
+ * username|fileId|fileName|fileSize|isPublic as an ADD.
+ * Lines that cannot be parsed are skipped and counted; see hasUnreadableRecords().
+ *
+ * Records are queued by enqueue() and written by a single committer thread, which
+ * fsyncs once per batch (group commit). When dead records outnumber live ones the
+ * committer rewrites the journal from the in-memory index into a side file and
+ * atomically renames it over the log, so a crash mid-compaction leaves the old log intact.
+ *
+ * Callers must update the in-memory index before enqueueing the matching record.
+ * Compaction snapshots the index, and replaying a record that is already reflected
+ * in the snapshot is harmless, so that ordering is all compaction needs.
+ */
+public class FileJournal {
+    private static final int COMPACT_MIN_RECORDS = 1000;
+
+    private final File logFile;
+    private final File compactFile;
+    private final Supplier<List<FileInfo>> liveFiles;
+
+    private FileChannel channel;
+    private final StringBuilder pending = new StringBuilder();
+    private long enqueuedSeq = 0;
+    private long durableSeq = 0;
+    private IOException failure;
+    private int totalRecords = 0;
+    private int pendingRecords = 0;
+    // Files the journal describes (ADDs minus DELs), so the compaction check needs no index snapshot
+    private int liveRecords = 0;
+    private int unreadableRecords = 0;
+
+    /**
+     * @param path      journal file
+     * @param liveFiles snapshot of every live file, used to compact the journal
+     */
+    public FileJournal(String path, Supplier<List<FileInfo>> liveFiles) {
+        this.logFile = new File(path);
+        this.compactFile = new File(path + ".compact");
+        this.liveFiles = liveFiles;
+    }
+
+    /**
+     * Replay the journal into the given callbacks, then open it for appending.
+     */
+    public void open(Consumer<FileInfo> onAdd, BiConsumer<String, String> onDelete) throws IOException {
+        // A leftover side file means compaction was interrupted; the log itself is still complete
+        if (compactFile.exists()) {
+            compactFile.delete();
+        }
+
+        if (logFile.exists()) {
+            replay(onAdd, onDelete);
+        } else {
+            System.out.println("No files log found. Starting fresh.");
+        }
+
+        channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        Thread committer = new Thread(this::commitLoop, "files-journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    private void replay(Consumer<FileInfo> onAdd, BiConsumer<String, String> onDelete) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            System.out.println("Loading files from log...");
+            String line;
+            int fileCount = 0;
+
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\\|");
+                try {
+                    if ((parts.length == 6 || parts.length == 7) && parts[0].equals("ADDE")) {
+                        onAdd.accept(parseAdd(decodeNames(parts, 1, 3), 1));
+                        fileCount++;
+                    } else if (parts.length == 3 && parts[0].equals("DELE")) {
+                        onDelete.accept(urlDecode(parts[1]), urlDecode(parts[2]));
+                        fileCount--;
+                    } else if ((parts.length == 6 || parts.length == 7) && parts[0].equals("ADD")) {
+                        onAdd.accept(parseAdd(parts, 1));
+                        fileCount++;
+                    } else if (parts.length == 3 && parts[0].equals("DEL")) {
+                        onDelete.accept(parts[1], parts[2]);
+                        fileCount--;
+                    } else if (parts.length == 5) {
+                        onAdd.accept(parseAdd(parts, 0));
+                        fileCount++;
+                    } else {
+                        unreadableRecords++;
+                        continue;
+                    }
+                } catch (IllegalArgumentException e) {
+                    unreadableRecords++;
+                    continue;
+                }
+                totalRecords++;
+            }
+
+            liveRecords = Math.max(0, fileCount);
+            System.out.println("Total files loaded: " + fileCount);
+            if (unreadableRecords > 0) {
+                System.err.println("Skipped " + unreadableRecords + " unreadable record(s) in files log");
+            }
+        }
+    }
+
+    private static FileInfo parseAdd(String[] parts, int offset) {
+        String username = parts[offset];
+        String fileId = parts[offset + 1];
+        String fileName = parts[offset + 2];
+        long fileSize = Long.parseLong(parts[offset + 3]);
+        boolean isPublic = Boolean.parseBoolean(parts[offset + 4]);
+        String blobHash = parts.length > offset + 5 ? parts[offset + 5] : null;
+        return new FileInfo(username, fileId, fileName, fileSize, isPublic, blobHash);
+    }
+
+    // Decode the username and fileName fields of a record, given their indexes
+    private static String[] decodeNames(String[] parts, int usernameIndex, int fileNameIndex) {
+        parts[usernameIndex] = urlDecode(parts[usernameIndex]);
+        parts[fileNameIndex] = urlDecode(parts[fileNameIndex]);
+        return parts;
+    }
+
+    public static String addRecord(FileInfo fileInfo) {
+        return "ADDE|" + urlEncode(fileInfo.getOwner()) + "|" + fileInfo.getFileId() + "|" +
+               urlEncode(fileInfo.getFileName()) + "|" + fileInfo.getFileSize() + "|" + fileInfo.isPublic() +
+               (fileInfo.getBlobHash() != null ? "|" + fileInfo.getBlobHash() : "");
+    }
+
+    public static String deleteRecord(String username, String fileName) {
+        return "DELE|" + urlEncode(username) + "|" + urlEncode(fileName);
+    }
+
+    /**
+     * True if replay skipped records it could not parse, so the index may be missing
+     * files that are still on disk.
+     */
+    public boolean hasUnreadableRecords() {
+        return unreadableRecords > 0;
+    }
+
+    private static String urlEncode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String urlDecode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Queue records for the next commit without waiting for disk.
+     * Records queued by one call are written together.
+     * @return a sequence number to pass to awaitDurable
+     */
+    public synchronized long enqueue(String... records) {
+        for (String record : records) {
+            pending.append(record).append('\n');
+            if (record.startsWith("ADD")) {
+                liveRecords++;
+            } else if (record.startsWith("DEL")) {
+                liveRecords--;
+            }
+        }
+        totalRecords += records.length;
+        pendingRecords += records.length;
+        enqueuedSeq++;
+        notifyAll();
+        return enqueuedSeq;
+    }
+
+    /**
+     * Block until the records queued under the given sequence number are on disk.
+     */
+    public synchronized void awaitDurable(long seq) throws IOException {
+        while (durableSeq < seq) {
+            if (failure != null) {
+                throw new IOException("Files log unavailable", failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while committing files log");
+            }
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            String batch;
+            long batchSeq;
+            synchronized (this) {
+                while (pending.length() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = pending.toString();
+                pending.setLength(0);
+                pendingRecords = 0;
+                batchSeq = enqueuedSeq;
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                // One fsync covers every record in the batch
+                channel.force(false);
+                synchronized (this) {
+                    durableSeq = batchSeq;
+                    notifyAll();
+                }
+                compactIfNeeded();
+            } catch (IOException e) {
+                System.err.println("Error writing to files log: " + e.getMessage());
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        synchronized (this) {
+            if (totalRecords < COMPACT_MIN_RECORDS || totalRecords <= 2 * liveRecords) {
+                return;
+            }
+        }
+        // Only snapshot the index once compaction is actually due
+        List<FileInfo> live = liveFiles.get();
+
+        try (FileChannel out = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder records = new StringBuilder();
+            for (FileInfo fileInfo : live) {
+                records.append(addRecord(fileInfo)).append('\n');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        try {
+            Files.move(compactFile.toPath(), logFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compactFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        synchronized (this) {
+            // Records queued since the snapshot are still pending and land in the new log
+            totalRecords = live.size() + pendingRecords;
+            liveRecords = live.size();
+        }
+        System.out.println("Compacted files log to " + live.size() + " records");
+    }
+}
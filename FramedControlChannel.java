@@ -0,0 +1,337 @@
+package FileServer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary protocol: each value is one frame of
+ *   opcode (1 byte) | payload length (4 bytes) | payload
+ *
+ * Protocol keywords (LOGIN_SUCCESS, ACK, COMPLETE, ...) travel as a bare opcode, and
+ * prefixed commands (UPLOAD_APPROVED:, DOWNLOAD_APPROVED:, ERROR:, ...) as an opcode plus
+ * the text after the prefix. writeChunk sends the CHUNK marker and the chunk data as one
+ * chunk frame, which reads back as "CHUNK" followed by the byte[]; the text "CHUNK"
+ * written on its own is an ordinary keyword.
+ * With compression on, byte[] payloads that deflate smaller go in a compressed frame
+ * whose payload is the original length (4 bytes) followed by the deflated bytes.
+ * Chunks written with writeBuffer and read with readPooled go through BufferPool
+ * buffers instead of a new array each.
+ *
+ * Reads never go past the current frame, so a session can still be parked on a selector
+ * between requests.
+ */
+public class FramedControlChannel implements ControlChannel {
+    static final byte[] MAGIC = {'F', 'S', 'B', '1'};
+
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    // Value opcodes
+    private static final int OP_TEXT = 0x01;
+    private static final int OP_BYTES = 0x02;
+    private static final int OP_LONG = 0x03;
+    private static final int OP_INT = 0x04;
+    private static final int OP_BOOLEAN = 0x05;
+    private static final int OP_CHUNK = 0x06;
+    private static final int OP_BYTES_DEFLATE = 0x07;
+    private static final int OP_CHUNK_DEFLATE = 0x08;
+
+    // Payloads this small rarely shrink enough to pay for the deflater
+    private static final int MIN_COMPRESS_SIZE = 512;
+
+    // Keywords, opcode 0x20 onwards
+    private static final String[] KEYWORDS = {
+            "LOGIN_SUCCESS", "LOGIN_FAILED", "ACK", "COMPLETE", "CHUNK", "ERROR",
+            "DOWNLOAD_COMPLETE", "FILE_EXISTS", "FILE_NEW", "REPLACE", "CANCEL",
+            "UPLOAD_CANCELLED", "INVALID_REQUEST_ID", "NORMAL_UPLOAD", "REQUEST_UPLOAD",
+            "DOWNLOAD_MODE:DATA", "DOWNLOAD_MODE:INLINE", "ENTER_DESCRIPTION", "ENTER_RECIPIENT",
+            "NO_MESSAGES", "UNREAD_MESSAGES", "READ_MESSAGES", "DISCONNECT", "ABORT",
+            "REPLACE_DELTA"
+    };
+    private static final int KEYWORD_BASE = 0x20;
+
+    // Prefixed commands, opcode 0x60 onwards
+    private static final String[] PREFIXES = {
+            "UPLOAD_APPROVED:", "UPLOAD_REJECTED:", "DOWNLOAD_APPROVED:", "DATA_CHANNEL:",
+            "ERROR:", "SUCCESS:", "RENAME:", "ACK:", "COPY:", "DELTA_SIGNATURES:",
+            "COMPRESSION:"
+    };
+    private static final int PREFIX_BASE = 0x60;
+
+    private static final Map<String, Integer> keywordOpcodes = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            keywordOpcodes.put(KEYWORDS[i], KEYWORD_BASE + i);
+        }
+    }
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    // A chunk read along with its marker, in a pooled buffer
+    private ByteBuffer pendingChunk;
+    private boolean compression = false;
+
+    public FramedControlChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE));
+        // Unbuffered on purpose: frames are read with exact lengths
+        this.in = new DataInputStream(socket.getInputStream());
+    }
+
+    /**
+     * Client side of the handshake.
+     * @return the framed channel, or null if the server only speaks the legacy protocol
+     */
+    public static FramedControlChannel connect(Socket socket) throws IOException {
+        FramedControlChannel channel = new FramedControlChannel(socket);
+        channel.sendHello();
+
+        byte[] reply = new byte[MAGIC.length];
+        channel.in.readFully(reply);
+        // An older server answers with its ObjectOutputStream header instead
+        return Arrays.equals(reply, MAGIC) ? channel : null;
+    }
+
+    void sendHello() throws IOException {
+        out.write(MAGIC);
+        out.flush();
+    }
+
+    @Override
+    public void writeObject(Object value) throws IOException {
+        if (value instanceof String) {
+            writeText((String) value);
+        } else if (value instanceof byte[]) {
+            byte[] data = (byte[]) value;
+            writeBytes(data, 0, data.length, false);
+        } else if (value instanceof Long) {
+            writeHeader(OP_LONG, 8);
+            out.writeLong((Long) value);
+            out.flush();
+        } else if (value instanceof Integer) {
+            writeHeader(OP_INT, 4);
+            out.writeInt((Integer) value);
+            out.flush();
+        } else if (value instanceof Boolean) {
+            writeHeader(OP_BOOLEAN, 1);
+            out.writeBoolean((Boolean) value);
+            out.flush();
+        } else {
+            throw new NotSerializableException(value == null ? "null" : value.getClass().getName());
+        }
+    }
+
+    @Override
+    public void writeBuffer(ByteBuffer data) throws IOException {
+        writeBuffer(data, false);
+    }
+
+    @Override
+    public void writeChunk(ByteBuffer data) throws IOException {
+        writeBuffer(data, true);
+    }
+
+    private void writeBuffer(ByteBuffer data, boolean chunk) throws IOException {
+        if (data.hasArray()) {
+            writeBytes(data.array(), data.arrayOffset() + data.position(), data.remaining(), chunk);
+        } else {
+            // Mapped or direct data goes through a pooled heap buffer
+            ByteBuffer copy = BufferPool.acquire(data.remaining());
+            try {
+                copy.put(data.duplicate()).flip();
+                writeBytes(copy.array(), 0, copy.remaining(), chunk);
+            } finally {
+                BufferPool.release(copy);
+            }
+        }
+    }
+
+    private void writeBytes(byte[] data, int offset, int length, boolean chunk) throws IOException {
+        if (compression && length >= MIN_COMPRESS_SIZE) {
+            ByteBuffer deflated = BufferPool.acquire(length);
+            try {
+                int size = Compression.deflate(data, offset, length, deflated.array());
+                if (size >= 0) {
+                    writeHeader(chunk ? OP_CHUNK_DEFLATE : OP_BYTES_DEFLATE, 4 + size);
+                    out.writeInt(length);
+                    out.write(deflated.array(), 0, size);
+                    out.flush();
+                    return;
+                }
+            } finally {
+                BufferPool.release(deflated);
+            }
+        }
+        writeHeader(chunk ? OP_CHUNK : OP_BYTES, length);
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    private void writeText(String text) throws IOException {
+        Integer keyword = keywordOpcodes.get(text);
+        if (keyword != null) {
+            writeFrame(keyword, null);
+            return;
+        }
+        for (int i = 0; i < PREFIXES.length; i++) {
+            if (text.startsWith(PREFIXES[i])) {
+                writeFrame(PREFIX_BASE + i, text.substring(PREFIXES[i].length()).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        writeFrame(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeHeader(int opcode, int length) throws IOException {
+        out.writeByte(opcode);
+        out.writeInt(length);
+    }
+
+    private void writeFrame(int opcode, byte[] payload) throws IOException {
+        writeHeader(opcode, payload == null ? 0 : payload.length);
+        if (payload != null) {
+            out.write(payload);
+        }
+        out.flush();
+    }
+
+    @Override
+    public Object readObject() throws IOException {
+        Object value = read(false);
+        if (value instanceof ByteBuffer) {
+            // A chunk read along with its marker
+            ByteBuffer chunk = (ByteBuffer) value;
+            byte[] data = new byte[chunk.remaining()];
+            chunk.get(data);
+            BufferPool.release(chunk);
+            return data;
+        }
+        return value;
+    }
+
+    @Override
+    public Object readPooled() throws IOException {
+        return read(true);
+    }
+
+    // With pooled set, byte[] values come back as pooled buffers
+    private Object read(boolean pooled) throws IOException {
+        if (pendingChunk != null) {
+            ByteBuffer chunk = pendingChunk;
+            pendingChunk = null;
+            return chunk;
+        }
+
+        int opcode = in.readUnsignedByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+
+        switch (opcode) {
+            case OP_TEXT:
+                return new String(readPayload(length), StandardCharsets.UTF_8);
+            case OP_BYTES:
+                return pooled ? readPooledPayload(length) : readPayload(length);
+            case OP_CHUNK:
+                pendingChunk = readPooledPayload(length);
+                return "CHUNK";
+            case OP_BYTES_DEFLATE:
+                return pooled ? readDeflated(length) : readDeflatedArray(length);
+            case OP_CHUNK_DEFLATE:
+                pendingChunk = readDeflated(length);
+                return "CHUNK";
+            case OP_LONG:
+                return in.readLong();
+            case OP_INT:
+                return in.readInt();
+            case OP_BOOLEAN:
+                return in.readBoolean();
+            default:
+                break;
+        }
+
+        if (opcode >= KEYWORD_BASE && opcode < KEYWORD_BASE + KEYWORDS.length) {
+            return KEYWORDS[opcode - KEYWORD_BASE];
+        }
+        if (opcode >= PREFIX_BASE && opcode < PREFIX_BASE + PREFIXES.length) {
+            return PREFIXES[opcode - PREFIX_BASE] + new String(readPayload(length), StandardCharsets.UTF_8);
+        }
+        throw new StreamCorruptedException("Unknown opcode 0x" + Integer.toHexString(opcode));
+    }
+
+    private byte[] readPayload(int length) throws IOException {
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private ByteBuffer readPooledPayload(int length) throws IOException {
+        ByteBuffer payload = BufferPool.acquire(length);
+        in.readFully(payload.array(), 0, length);
+        return payload;
+    }
+
+    // Inflate a compressed frame into a pooled buffer
+    private ByteBuffer readDeflated(int length) throws IOException {
+        if (length < 4) {
+            throw new StreamCorruptedException("Invalid compressed frame");
+        }
+        int originalLength = in.readInt();
+        if (originalLength < 0 || originalLength > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid compressed frame length " + originalLength);
+        }
+        ByteBuffer compressed = readPooledPayload(length - 4);
+        ByteBuffer inflated = BufferPool.acquire(originalLength);
+        try {
+            Compression.inflate(compressed.array(), 0, length - 4, inflated.array(), originalLength);
+            return inflated;
+        } catch (IOException e) {
+            BufferPool.release(inflated);
+            throw e;
+        } finally {
+            BufferPool.release(compressed);
+        }
+    }
+
+    private byte[] readDeflatedArray(int length) throws IOException {
+        ByteBuffer inflated = readDeflated(length);
+        byte[] data = new byte[inflated.remaining()];
+        inflated.get(data);
+        BufferPool.release(inflated);
+        return data;
+    }
+
+    @Override
+    public void setCompression(boolean enabled) {
+        this.compression = enabled;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
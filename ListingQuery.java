@@ -0,0 +1,236 @@
+package FileServer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One page request of a file listing: filters, sort order, page size and the
+ * cursor to continue after.
+ *
+ * On the wire it is LIST:<sort>:<pageSize>:<minSize>:<maxSize>:<owner>:<namePrefix>:<cursor>
+ * with the text fields URL-encoded, so names may contain colons. The cursor holds
+ * the sort key of the last file sent; the next page starts after that key, so files
+ * added or removed in between do not shift the pages.
+ */
+public class ListingQuery {
+    public static final String PREFIX = "LIST:";
+    // Ends a listing; the session goes back to the menu (or on with the download)
+    public static final String DONE = "LIST_DONE";
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    public static final int MAX_PAGE_SIZE = 200;
+
+    public static final String SORT_NAME = "name";
+    public static final String SORT_SIZE = "size";
+    public static final String SORT_OWNER = "owner";
+
+    private String sort = SORT_NAME;
+    private boolean descending = false;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private long minSize = -1; // -1 = no bound
+    private long maxSize = -1;
+    private String owner = "";
+    private String namePrefix = "";
+    private String cursor = "";
+
+    /**
+     * One page of a listing.
+     */
+    public static class Page {
+        public final List<FileInfo> files;
+        public final int offset; // matching files on earlier pages
+        public final int total; // files matching the filters
+        public final String nextCursor; // null on the last page
+
+        Page(List<FileInfo> files, int offset, int total, String nextCursor) {
+            this.files = files;
+            this.offset = offset;
+            this.total = total;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /**
+     * @param sort name, size or owner, prefixed with '-' for descending order
+     * @throws IllegalArgumentException for an unknown sort field
+     */
+    public void setSort(String sort) {
+        boolean desc = sort.startsWith("-");
+        String field = desc ? sort.substring(1) : sort;
+        if (!field.equals(SORT_NAME) && !field.equals(SORT_SIZE) && !field.equals(SORT_OWNER)) {
+            throw new IllegalArgumentException("Unknown sort '" + sort + "'");
+        }
+        this.sort = field;
+        this.descending = desc;
+    }
+
+    public String getSort() {
+        return (descending ? "-" : "") + sort;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param minSize smallest size in bytes, or -1 for none
+     * @param maxSize largest size in bytes, or -1 for none
+     */
+    public void setSizeRange(long minSize, long maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    // Exact owner to list, or "" for all
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public String describe() {
+        StringBuilder text = new StringBuilder("sort=" + getSort());
+        if (!namePrefix.isEmpty()) {
+            text.append(" name=" + namePrefix + "*");
+        }
+        if (!owner.isEmpty()) {
+            text.append(" owner=" + owner);
+        }
+        if (minSize >= 0 || maxSize >= 0) {
+            text.append(" size=" + (minSize >= 0 ? minSize : 0) + ".." + (maxSize >= 0 ? String.valueOf(maxSize) : ""));
+        }
+        return text.toString();
+    }
+
+    private boolean matches(FileInfo file) {
+        return file.getFileName().startsWith(namePrefix)
+                && (owner.isEmpty() || file.getOwner().equals(owner))
+                && (minSize < 0 || file.getFileSize() >= minSize)
+                && (maxSize < 0 || file.getFileSize() <= maxSize);
+    }
+
+    /**
+     * Total order of the listing. Owner and name break ties, since together they
+     * identify a file.
+     */
+    private Comparator<FileInfo> comparator() {
+        Comparator<FileInfo> byOwnerThenName = Comparator.comparing(FileInfo::getOwner)
+                                                          .thenComparing(FileInfo::getFileName);
+        Comparator<FileInfo> order;
+        if (sort.equals(SORT_SIZE)) {
+            order = Comparator.comparingLong(FileInfo::getFileSize).thenComparing(byOwnerThenName);
+        } else if (sort.equals(SORT_OWNER)) {
+            order = byOwnerThenName;
+        } else {
+            order = Comparator.comparing(FileInfo::getFileName).thenComparing(FileInfo::getOwner);
+        }
+        return descending ? order.reversed() : order;
+    }
+
+    // The file the cursor points at, for comparing against; null on the first page
+    private FileInfo cursorKey() {
+        if (cursor.isEmpty()) {
+            return null;
+        }
+        String[] parts = cursor.split("\n", 3);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        try {
+            return new FileInfo(parts[1], null, parts[2], Long.parseLong(parts[0]), false);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    /**
+     * Pick this query's page out of the files. Only the files past the cursor are sorted.
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public Page select(Collection<FileInfo> files) {
+        Comparator<FileInfo> order = comparator();
+        FileInfo after = cursorKey();
+        List<FileInfo> remaining = new ArrayList<>();
+        int offset = 0;
+        for (FileInfo file : files) {
+            if (!matches(file)) {
+                continue;
+            }
+            if (after != null && order.compare(file, after) <= 0) {
+                offset++;
+            } else {
+                remaining.add(file);
+            }
+        }
+        remaining.sort(order);
+
+        List<FileInfo> page = new ArrayList<>(remaining.subList(0, Math.min(pageSize, remaining.size())));
+        String next = remaining.size() > pageSize ? cursorAfter(page.get(page.size() - 1)) : null;
+        return new Page(page, offset, offset + remaining.size(), next);
+    }
+
+    private static String cursorAfter(FileInfo file) {
+        return file.getFileSize() + "\n" + file.getOwner() + "\n" + file.getFileName();
+    }
+
+    public String encode() {
+        return PREFIX + getSort() + ":" + pageSize + ":" + minSize + ":" + maxSize + ":" +
+               urlEncode(owner) + ":" + urlEncode(namePrefix) + ":" + urlEncode(cursor);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    public static ListingQuery parse(String request) {
+        String[] fields = request.substring(PREFIX.length()).split(":", -1);
+        if (fields.length != 7) {
+            throw new IllegalArgumentException("Malformed listing request");
+        }
+        ListingQuery query = new ListingQuery();
+        try {
+            query.setSort(fields[0]);
+            query.setPageSize(Integer.parseInt(fields[1]));
+            query.setSizeRange(Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed listing request");
+        }
+        query.owner = urlDecode(fields[4]);
+        query.namePrefix = urlDecode(fields[5]);
+        query.cursor = urlDecode(fields[6]);
+        return query;
+    }
+
+    private static String urlEncode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String urlDecode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package FileServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped regions of popular files, so repeated downloads are served
+ * straight from the page cache instead of being read into the heap each time.
+ *
+ * A file is mapped on its ADMIT_AFTER-th download; until then only a hit counter
+ * is kept. Entries are evicted least recently used once the total mapped size
+ * exceeds the capacity, and invalidated when the file behind them is deleted.
+ * A dropped mapping stays valid for transfers still using it and is unmapped
+ * by the garbage collector once they finish.
+ */
+public class MappedFileCache {
+    private static final int ADMIT_AFTER = 2;
+    private static final int MAX_TRACKED_FILES = 1024;
+
+    private final long capacity;
+    private final long maxFileSize;
+
+    // Path -> mapping, in access order; guarded by this
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Downloads of files that are not mapped yet, forgetting the least recent ones
+    private final LinkedHashMap<String, Integer> candidates = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+    private long mappedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param capacity total bytes that may be mapped at once; 0 disables the cache
+     */
+    public MappedFileCache(long capacity) {
+        this.capacity = capacity;
+        // One file may not take more than a quarter of the cache, nor exceed a single buffer
+        this.maxFileSize = Math.min(capacity / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Record a download of the file and return a read-only view of its contents,
+     * or null if the file is not (yet) worth mapping. The view is positioned at 0
+     * and owned by the caller.
+     */
+    public synchronized ByteBuffer get(File file) {
+        String key = file.getPath();
+        long length = file.length();
+
+        ByteBuffer mapped = entries.get(key);
+        if (mapped != null && mapped.capacity() == length) {
+            hits++;
+            return mapped.duplicate();
+        }
+        if (mapped != null) {
+            // The file changed under the mapping
+            remove(key);
+        }
+        misses++;
+
+        if (length == 0 || length > maxFileSize || candidates.merge(key, 1, Integer::sum) < ADMIT_AFTER) {
+            return null;
+        }
+        candidates.remove(key);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mapped = region.asReadOnlyBuffer();
+        } catch (IOException e) {
+            System.err.println("Could not map " + key + ": " + e.getMessage());
+            return null;
+        }
+
+        entries.put(key, mapped);
+        mappedBytes += length;
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (mappedBytes > capacity && eldest.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = eldest.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            mappedBytes -= entry.getValue().capacity();
+            eldest.remove();
+            evictions++;
+        }
+        return mapped.duplicate();
+    }
+
+    /**
+     * Forget the file, e.g. because it was replaced or deleted.
+     */
+    public synchronized void invalidate(File file) {
+        String key = file.getPath();
+        remove(key);
+        candidates.remove(key);
+    }
+
+    private void remove(String key) {
+        ByteBuffer mapped = entries.remove(key);
+        if (mapped != null) {
+            mappedBytes -= mapped.capacity();
+        }
+    }
+
+    public synchronized String metricsSummary() {
+        return "mapped files=" + entries.size() +
+               " bytes=" + mappedBytes +
+               " hits=" + hits +
+               " misses=" + misses +
+               " evictions=" + evictions;
+    }
+}
@@ -21,13 +21,25 @@ public class Message implements Serializable {
     private final LocalDateTime timestamp;
     private boolean read;
     
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    
     public Message(String messageId, MessageType type, String from, String content) {
+        this(messageId, type, from, content, LocalDateTime.now(), false);
+    }
+    
+    // Used when loading stored messages, which keep their original time and read state
+    public Message(String messageId, MessageType type, String from, String content,
+                   LocalDateTime timestamp, boolean read) {
         this.messageId = messageId;
         this.type = type;
         this.from = from;
         this.content = content;
-        this.timestamp = LocalDateTime.now();
-        this.read = false;
+        this.timestamp = timestamp;
+        this.read = read;
+    }
+    
+    public static LocalDateTime parseTimestamp(String formatted) {
+        return LocalDateTime.parse(formatted, FORMATTER);
     }
     
     public String getMessageId() {
@@ -59,8 +71,7 @@ public class Message implements Serializable {
     }
     
     public String getFormattedTimestamp() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return timestamp.format(formatter);
+        return timestamp.format(FORMATTER);
     }
     
     @Override
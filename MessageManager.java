@@ -2,21 +2,96 @@ package FileServer;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Per-user mailboxes persisted as append-only logs, plus one shared broadcast inbox.
+ *
+ * Record formats in <user>_messages.txt:
+ *   M|messageId|type|from|contentBase64|timestamp|read   (a direct message)
+ *   R|messageId                                         (a direct or broadcast message was read)
+ *   C|sequence                                          (first broadcast visible to the user)
+ * Lines in the old format (messageId|type|from|contentBase64|timestamp|read) are read as M records.
+ *
+ * Broadcasts are stored once in broadcasts.log as
+ *   B|messageId|type|from|contentBase64|timestamp
+ * and numbered by position. A user sees every broadcast from their cursor on,
+ * except their own, and keeps a read bitmap over broadcast numbers. Unread and
+ * read listings merge direct and broadcast messages on the fly.
+ *
+ * Adding a message or marking messages read is a single append. Once a mailbox
+ * log holds far more records than live entries it is rewritten (compacted) through
+ * a temp file that is atomically renamed over the log.
+ */
 public class MessageManager {
+    private static final int COMPACT_SLACK = 64;
+    private static final String BROADCASTS_LOG = Server.BASE_DIRECTORY + File.separator + "broadcasts.log";
     
-    private Map<String, List<Message>> userMessages;
+    private Map<String, Mailbox> mailboxes;
+
+    // Shared broadcasts in arrival order; guarded by the list itself
+    private final List<Message> broadcasts = new ArrayList<>();
+    private final Map<String, Integer> broadcastSeqById = new HashMap<>();
+
+    // One user's messages; the mailbox is also that user's lock
+    private static class Mailbox {
+        final List<Message> messages = new ArrayList<>();
+        final Map<String, Message> byId = new HashMap<>();
+        int broadcastCursor = 0;
+        final BitSet broadcastRead = new BitSet();
+        int recordCount = 0;
+
+        void add(Message message) {
+            messages.add(message);
+            byId.put(message.getMessageId(), message);
+        }
+
+        int liveRecords() {
+            return messages.size() + 1 + broadcastRead.cardinality();
+        }
+    }
     
     public MessageManager() {
-        this.userMessages = new HashMap<>();
+        this.mailboxes = new ConcurrentHashMap<>();
+        loadBroadcasts();
         loadAllMessages();
     }
+
+    private void loadBroadcasts() {
+        File logFile = new File(BROADCASTS_LOG);
+        if (!logFile.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("B|")) {
+                    continue;
+                }
+                // Format: messageId|type|from|contentBase64|timestamp
+                String[] parts = line.substring(2).split("\\|", 5);
+                if (parts.length == 5) {
+                    Message message = parseMessage(parts, false);
+                    broadcastSeqById.put(message.getMessageId(), broadcasts.size());
+                    broadcasts.add(message);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading broadcasts: " + e.getMessage());
+        }
+    }
     
     // Load all messages from files
     private void loadAllMessages() {
         File baseDir = new File(Server.BASE_DIRECTORY);
-        File[] userDirs = baseDir.listFiles(File::isDirectory);
+        File[] userDirs = baseDir.listFiles(dir -> dir.isDirectory() && !dir.getName().startsWith("."));
         
         if (userDirs != null) {
             for (File userDir : userDirs) {
@@ -26,148 +101,322 @@ public class MessageManager {
         }
     }
     
+    private static String messageFilePath(String username) {
+        return Server.BASE_DIRECTORY + File.separator + username + File.separator + username + Server.MESSAGES_SUFFIX;
+    }
+
+    private static Message parseMessage(String[] parts, boolean read) {
+        String messageId = parts[0];
+        Message.MessageType type = Message.MessageType.valueOf(parts[1]);
+        String from = parts[2];
+
+        String content;
+        try {
+            content = new String(Base64.getDecoder().decode(parts[3]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+
+            content = parts[3];
+        }
+
+        LocalDateTime timestamp;
+        try {
+            timestamp = Message.parseTimestamp(parts[4]);
+        } catch (DateTimeParseException e) {
+            timestamp = LocalDateTime.now();
+        }
+        return new Message(messageId, type, from, content, timestamp, read);
+    }
+
     private void loadMessagesForUser(String username) {
-        String filePath = Server.BASE_DIRECTORY + File.separator + username + File.separator + username + Server.MESSAGES_SUFFIX;
-        File messageFile = new File(filePath);
+        File messageFile = new File(messageFilePath(username));
+        Mailbox mailbox = new Mailbox();
+        mailboxes.put(username, mailbox);
         
         if (!messageFile.exists()) {
-            userMessages.put(username, new ArrayList<>());
             return;
         }
         
-        List<Message> messages = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(messageFile))) {
             String line;
             while ((line = reader.readLine()) != null) {
+                if (line.startsWith("R|")) {
+                    String messageId = line.substring(2);
+                    Message message = mailbox.byId.get(messageId);
+                    Integer seq = broadcastSeqById.get(messageId);
+                    if (message != null) {
+                        message.markAsRead();
+                    } else if (seq != null) {
+                        mailbox.broadcastRead.set(seq);
+                    }
+                    mailbox.recordCount++;
+                    continue;
+                }
+
+                if (line.startsWith("C|")) {
+                    mailbox.broadcastCursor = Integer.parseInt(line.substring(2));
+                    mailbox.recordCount++;
+                    continue;
+                }
+
+                if (line.startsWith("M|")) {
+                    line = line.substring(2);
+                }
                 // Format: messageId|type|from|contentBase64|timestamp|read
                 String[] parts = line.split("\\|", 6);
                 if (parts.length == 6) {
-                    String messageId = parts[0];
-                    Message.MessageType type = Message.MessageType.valueOf(parts[1]);
-                    String from = parts[2];
-                   
-                    String content;
-                    try {
-                        content = new String(Base64.getDecoder().decode(parts[3]), StandardCharsets.UTF_8);
-                    } catch (IllegalArgumentException e) {
-                  
-                        content = parts[3];
-                    }
-                    boolean read = Boolean.parseBoolean(parts[5]);
-                    
-                    Message message = new Message(messageId, type, from, content);
-                    if (read) {
-                        message.markAsRead();
-                    }
-                    messages.add(message);
+                    mailbox.add(parseMessage(parts, Boolean.parseBoolean(parts[5])));
+                    mailbox.recordCount++;
                 }
             }
         } catch (IOException e) {
             System.err.println("Error loading messages for " + username + ": " + e.getMessage());
         }
-        
-        userMessages.put(username, messages);
     }
     
+    private Mailbox mailbox(String username) {
+        return mailboxes.computeIfAbsent(username, k -> new Mailbox());
+    }
     
-    private synchronized void saveMessagesForUser(String username) {
+    private static String encodedFields(Message message) {
+        String encodedContent = Base64.getEncoder().encodeToString(
+                message.getContent().getBytes(StandardCharsets.UTF_8));
+        return message.getMessageId() + "|" +
+               message.getType().name() + "|" +
+               message.getFrom() + "|" +
+               encodedContent + "|" +
+               message.getFormattedTimestamp();
+    }
+
+    private static String messageRecord(Message message) {
+        return "M|" + encodedFields(message) + "|" + message.isRead();
+    }
+
+    // Append records to the user's log; callers hold the mailbox lock
+    private void appendRecords(String username, Mailbox mailbox, List<String> records) {
         String userDir = Server.BASE_DIRECTORY + File.separator + username;
         File dir = new File(userDir);
         if (!dir.exists()) {
             dir.mkdirs();
         }
         
-        String filePath = userDir + File.separator + username + Server.MESSAGES_SUFFIX;
-        List<Message> messages = userMessages.get(username);
-        
-        if (messages == null || messages.isEmpty()) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(messageFilePath(username), true))) {
+            for (String record : records) {
+                writer.write(record);
+                writer.newLine();
+            }
+            mailbox.recordCount += records.size();
+        } catch (IOException e) {
+            System.err.println("Error saving messages for " + username + ": " + e.getMessage());
             return;
         }
         
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            for (Message message : messages) {
+        if (mailbox.recordCount > 2 * mailbox.liveRecords() + COMPACT_SLACK) {
+            compact(username, mailbox);
+        }
+    }
                
-                String encodedContent = Base64.getEncoder().encodeToString(
-                        message.getContent().getBytes(StandardCharsets.UTF_8));
-                String line = message.getMessageId() + "|" +
-                             message.getType().name() + "|" +
-                             message.getFrom() + "|" +
-                             encodedContent + "|" +
-                             message.getFormattedTimestamp() + "|" +
-                             message.isRead();
-                writer.write(line);
+    // Rewrite the log with one record per live entry; callers hold the mailbox lock
+    private void compact(String username, Mailbox mailbox) {
+        File messageFile = new File(messageFilePath(username));
+        File tempFile = new File(messageFile.getPath() + ".tmp");
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+            writer.write("C|" + mailbox.broadcastCursor);
+            writer.newLine();
+            for (Message message : mailbox.messages) {
+                writer.write(messageRecord(message));
                 writer.newLine();
-                // System.out.println("Saved message for " + username + ": " + message.getMessageId());
+            }
+            synchronized (broadcasts) {
+                for (int seq = mailbox.broadcastRead.nextSetBit(0); seq >= 0; seq = mailbox.broadcastRead.nextSetBit(seq + 1)) {
+                    writer.write("R|" + broadcasts.get(seq).getMessageId());
+                    writer.newLine();
+                }
             }
         } catch (IOException e) {
-            System.err.println("Error saving messages for " + username + ": " + e.getMessage());
+            System.err.println("Error compacting messages for " + username + ": " + e.getMessage());
+            return;
+        }
+
+        try {
+            try {
+                Files.move(tempFile.toPath(), messageFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), messageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            mailbox.recordCount = mailbox.liveRecords();
+        } catch (IOException e) {
+            System.err.println("Error replacing messages file for " + username + ": " + e.getMessage());
         }
     }
     
 
-    public synchronized void addMessage(String username, Message message) {
-        List<Message> messages = userMessages.computeIfAbsent(username, k -> new ArrayList<>());
-        messages.add(message);
-        saveMessagesForUser(username);
+    /**
+     * Create the mailbox of a newly registered user.
+     * Broadcasts sent before registration are not shown to them.
+     */
+    public void registerUser(String username) {
+        Mailbox mailbox = mailbox(username);
+        synchronized (mailbox) {
+            synchronized (broadcasts) {
+                mailbox.broadcastCursor = broadcasts.size();
+            }
+            appendRecords(username, mailbox, Collections.singletonList("C|" + mailbox.broadcastCursor));
+        }
     }
     
 
-    public synchronized List<Message> getUnreadMessages(String username) {
-        List<Message> messages = userMessages.get(username);
-        if (messages == null) {
-            return new ArrayList<>();
+    public void addMessage(String username, Message message) {
+        Mailbox mailbox = mailbox(username);
+        synchronized (mailbox) {
+            mailbox.add(message);
+            appendRecords(username, mailbox, Collections.singletonList(messageRecord(message)));
         }
-        
-        List<Message> unread = new ArrayList<>();
-        for (Message msg : messages) {
-            if (!msg.isRead()) {
-                unread.add(msg);
+    }
+
+
+    /**
+     * Store broadcast messages once for every user, with a single append.
+     * Each message is shown to all users except its sender.
+     */
+    public void addBroadcasts(List<Message> messages) {
+        synchronized (broadcasts) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(BROADCASTS_LOG, true))) {
+                for (Message message : messages) {
+                    writer.write("B|" + encodedFields(message));
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                System.err.println("Error saving broadcasts: " + e.getMessage());
+            }
+            for (Message message : messages) {
+                broadcastSeqById.put(message.getMessageId(), broadcasts.size());
+                broadcasts.add(message);
             }
         }
-        return unread;
     }
-    
 
-    public synchronized List<Message> getReadMessages(String username) {
-        List<Message> messages = userMessages.get(username);
-        if (messages == null) {
+
+    // Per-user copies of the broadcasts this user can see, with their own read flag
+    private List<Message> visibleBroadcasts(String username, Mailbox mailbox, Boolean read) {
+        List<Message> visible = new ArrayList<>();
+        synchronized (broadcasts) {
+            for (int seq = mailbox.broadcastCursor; seq < broadcasts.size(); seq++) {
+                Message broadcast = broadcasts.get(seq);
+                if (broadcast.getFrom().equals(username)) {
+                    continue;
+                }
+                boolean isRead = mailbox.broadcastRead.get(seq);
+                if (read == null || read == isRead) {
+                    visible.add(new Message(broadcast.getMessageId(), broadcast.getType(), broadcast.getFrom(),
+                                            broadcast.getContent(), broadcast.getTimestamp(), isRead));
+                }
+            }
+        }
+        return visible;
+    }
+
+    // Merge two lists that are each in time order
+    private static List<Message> mergeByTime(List<Message> direct, List<Message> broadcast) {
+        List<Message> merged = new ArrayList<>(direct.size() + broadcast.size());
+        int i = 0;
+        int j = 0;
+        while (i < direct.size() && j < broadcast.size()) {
+            if (broadcast.get(j).getTimestamp().isBefore(direct.get(i).getTimestamp())) {
+                merged.add(broadcast.get(j++));
+            } else {
+                merged.add(direct.get(i++));
+            }
+        }
+        merged.addAll(direct.subList(i, direct.size()));
+        merged.addAll(broadcast.subList(j, broadcast.size()));
+        return merged;
+    }
+
+    private List<Message> listMessages(String username, boolean read) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
             return new ArrayList<>();
         }
         
-        List<Message> read = new ArrayList<>();
-        for (Message msg : messages) {
-            if (msg.isRead()) {
-                read.add(msg);
+        List<Message> direct = new ArrayList<>();
+        List<Message> broadcast;
+        synchronized (mailbox) {
+            for (Message msg : mailbox.messages) {
+                if (msg.isRead() == read) {
+                    direct.add(msg);
+                }
             }
+            broadcast = visibleBroadcasts(username, mailbox, read);
         }
-        return read;
+        return mergeByTime(direct, broadcast);
+    }
+    
+
+    public List<Message> getUnreadMessages(String username) {
+        return listMessages(username, false);
     }
     
 
-    public synchronized void markMessagesAsRead(String username, List<String> messageIds) {
-        List<Message> messages = userMessages.get(username);
-        if (messages == null) {
+    public List<Message> getReadMessages(String username) {
+        return listMessages(username, true);
+    }
+
+
+    public void markMessagesAsRead(String username, List<String> messageIds) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
             return;
         }
         
-        for (Message msg : messages) {
-            if (messageIds.contains(msg.getMessageId())) {
-                msg.markAsRead();
+        synchronized (mailbox) {
+            // Only messages that change state get a read record
+            List<String> records = new ArrayList<>();
+            for (String messageId : messageIds) {
+                Message msg = mailbox.byId.get(messageId);
+                if (msg != null) {
+                    if (!msg.isRead()) {
+                        msg.markAsRead();
+                        records.add("R|" + messageId);
+                    }
+                    continue;
+                }
+
+                Integer seq;
+                synchronized (broadcasts) {
+                    seq = broadcastSeqById.get(messageId);
+                }
+                if (seq != null && seq >= mailbox.broadcastCursor && !mailbox.broadcastRead.get(seq)) {
+                    mailbox.broadcastRead.set(seq);
+                    records.add("R|" + messageId);
+                }
+            }
+            if (!records.isEmpty()) {
+                appendRecords(username, mailbox, records);
             }
         }
-        saveMessagesForUser(username);
     }
     
 
-    public synchronized int getUnreadCount(String username) {
-        List<Message> messages = userMessages.get(username);
-        if (messages == null) {
+    public int getUnreadCount(String username) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null) {
             return 0;
         }
         int count = 0;
-        for (Message msg : messages) {
-            if (!msg.isRead()) {
-                count++;
+        synchronized (mailbox) {
+            for (Message msg : mailbox.messages) {
+                if (!msg.isRead()) {
+                    count++;
+                }
+            }
+            synchronized (broadcasts) {
+                for (int seq = mailbox.broadcastCursor; seq < broadcasts.size(); seq++) {
+                    if (!mailbox.broadcastRead.get(seq) && !broadcasts.get(seq).getFrom().equals(username)) {
+                        count++;
+                    }
+                }
             }
         }
         return count;
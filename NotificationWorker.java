@@ -4,53 +4,222 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NotificationWorker implements ClientSession {
+    private static final int QUEUE_CAPACITY = 100;
+
+    /**
+     * What to do when a subscriber's queue is full.
+     * DROP_OLDEST evicts the oldest queued notification, COALESCE skips duplicates and
+     * folds evicted notifications into one summary line, DISCONNECT drops the subscriber.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        COALESCE,
+        DISCONNECT
+    }
+
+    private static final OverflowPolicy OVERFLOW_POLICY =
+            overflowPolicy(System.getProperty("fileserver.notify.overflow", OverflowPolicy.DROP_OLDEST.name()));
+
+    private static OverflowPolicy overflowPolicy(String name) {
+        try {
+            return OverflowPolicy.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown notification overflow policy '" + name + "', using drop_oldest");
+            return OverflowPolicy.DROP_OLDEST;
+        }
+    }
+
+    // Queues are drained on a shared pool; a drain task only exists while a queue is non-empty
+    private static final ExecutorService writers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "notification-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Metrics across all subscribers
+    private static final AtomicLong enqueuedCount = new AtomicLong();
+    private static final AtomicLong deliveredCount = new AtomicLong();
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static final AtomicLong disconnectedCount = new AtomicLong();
+    private static final AtomicLong maxQueueDepth = new AtomicLong();
 
-public class NotificationWorker extends Thread {
     private final Socket socket;
     private ObjectOutputStream out;
     private ObjectInputStream in;
     private String username;
 
+    // Outbound queue, guarded by itself
+    private final Deque<String> queue = new ArrayDeque<>();
+    private boolean draining = false;
+    private int coalesced = 0;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
     public NotificationWorker(Socket socket) {
         this.socket = socket;
     }
 
     @Override
-    public void run() {
+    public boolean open() {
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
+            // Notifications are pushed from other threads, possibly while the channel is parked non-blocking
+            out = new ObjectOutputStream(socket.getChannel() != null
+                    ? new ChannelOutputStream(socket.getChannel())
+                    : socket.getOutputStream());
             in = new ObjectInputStream(socket.getInputStream());
 
             Object obj = in.readObject();
             if (!(obj instanceof String)) {
-                return;
+                return false;
             }
             username = ((String) obj).trim();
             if (username.isEmpty()) {
-                return;
+                username = null;
+                return false;
             }
 
-            Server.registerNotifier(username, out);
+            Server.registerNotifier(username, this);
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            // Client disconnected or stream error
+            return false;
+        }
+    }
 
-            // Keep the connection alive until client disconnects
-            while (true) {
-                Object msg = in.readObject();
-                if (msg instanceof String && ((String) msg).equalsIgnoreCase("DISCONNECT")) {
-                    break;
-                }
-            }
+    @Override
+    public boolean serveNext() {
+        // Keep the connection alive until client disconnects
+        try {
+            Object msg = in.readObject();
+            return !(msg instanceof String && ((String) msg).equalsIgnoreCase("DISCONNECT"));
         } catch (IOException | ClassNotFoundException e) {
             // Client disconnected or stream error
-        } finally {
-            if (username != null) {
-                Server.unregisterNotifier(username, out);
+            return false;
+        }
+    }
+
+    /**
+     * Queue a notification for this subscriber without blocking on the socket.
+     */
+    public void enqueue(String message) {
+        if (closed.get()) {
+            return;
+        }
+
+        boolean startDrain = false;
+        boolean disconnect = false;
+        synchronized (queue) {
+            if (queue.size() >= QUEUE_CAPACITY) {
+                switch (OVERFLOW_POLICY) {
+                    case COALESCE:
+                        if (queue.contains(message)) {
+                            droppedCount.incrementAndGet();
+                            return;
+                        }
+                        queue.pollFirst();
+                        coalesced++;
+                        droppedCount.incrementAndGet();
+                        break;
+                    case DISCONNECT:
+                        disconnect = true;
+                        break;
+                    case DROP_OLDEST:
+                    default:
+                        queue.pollFirst();
+                        droppedCount.incrementAndGet();
+                        break;
+                }
             }
+            if (!disconnect) {
+                queue.addLast(message);
+                enqueuedCount.incrementAndGet();
+                maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+                if (!draining) {
+                    draining = true;
+                    startDrain = true;
+                }
+            }
+        }
+
+        if (disconnect) {
+            System.err.println("Notification queue full for " + username + ", disconnecting subscriber");
+            disconnectedCount.incrementAndGet();
+            close();
+        } else if (startDrain) {
+            writers.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            String message;
+            synchronized (queue) {
+                if (coalesced > 0) {
+                    message = "(" + coalesced + " earlier notification(s) were coalesced)";
+                    coalesced = 0;
+                } else {
+                    message = queue.pollFirst();
+                }
+                if (message == null || closed.get()) {
+                    draining = false;
+                    return;
+                }
+            }
+
             try {
-                if (out != null) out.close();
-                if (in != null) in.close();
-                socket.close();
-            } catch (IOException ignored) {
+                out.writeObject(message);
+                // Forget the message so a long-lived subscription does not retain every one sent
+                out.reset();
+                out.flush();
+                deliveredCount.incrementAndGet();
+            } catch (IOException e) {
+                synchronized (queue) {
+                    draining = false;
+                }
+                close();
+                return;
             }
         }
     }
+
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public static String metricsSummary() {
+        return "notifications enqueued=" + enqueuedCount.get() +
+               " delivered=" + deliveredCount.get() +
+               " dropped=" + droppedCount.get() +
+               " disconnected=" + disconnectedCount.get() +
+               " maxQueueDepth=" + maxQueueDepth.get();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (username != null) {
+            Server.unregisterNotifier(username, this);
+        }
+        synchronized (queue) {
+            queue.clear();
+        }
+        try {
+            // Socket first, so closing the streams cannot block on a peer that stopped reading
+            socket.close();
+            if (out != null) out.close();
+            if (in != null) in.close();
+        } catch (IOException ignored) {
+        }
+    }
 }
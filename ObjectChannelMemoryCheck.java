@@ -0,0 +1,110 @@
+package FileServer;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Runnable check that a legacy (object stream) session does not retain the data it
+ * carries. Pushes the given number of megabytes of upload chunks through an
+ * ObjectControlChannel over loopback, which only completes under a small heap if
+ * neither end keeps past chunks reachable. Also checks that a value named "CHUNK"
+ * followed by back-referenced values from a peer that never resets reads correctly.
+ *
+ * Run with a capped heap, e.g.
+ *   java -Xmx64m -cp <classes> FileServer.ObjectChannelMemoryCheck 400
+ * Exits with status 1 if a check fails.
+ */
+public class ObjectChannelMemoryCheck {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 400;
+
+        try (ServerSocket listener = new ServerSocket(0)) {
+            checkChunkStream(listener, megabytes * 1024 * 1024);
+            checkChunkNamedValue(listener);
+        } catch (OutOfMemoryError | IOException | ClassNotFoundException e) {
+            System.err.println("FAILED: " + e);
+            System.exit(1);
+        }
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long usedMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        System.out.println("OK: " + megabytes + " MB of chunks through a " + runtime.maxMemory() / (1024 * 1024)
+                           + " MB heap, " + usedMb + " MB in use afterwards");
+    }
+
+    /**
+     * Upload totalBytes as fresh chunks, the way Client does, and read them back the way Worker does.
+     */
+    private static void checkChunkStream(ServerSocket listener, long totalBytes) throws Exception {
+        Thread sender = startSender(listener.getLocalPort(), socket -> {
+            ControlChannel channel = ObjectControlChannel.connect(socket);
+            for (long sent = 0; sent < totalBytes; sent += CHUNK_SIZE) {
+                channel.writeChunk(ByteBuffer.wrap(new byte[(int) Math.min(CHUNK_SIZE, totalBytes - sent)]));
+            }
+            channel.writeObject("COMPLETE");
+            channel.flush();
+        });
+
+        long received = 0;
+        try (Socket socket = listener.accept(); ControlChannel channel = ControlChannel.accept(socket)) {
+            String msg;
+            while ((msg = (String) channel.readObject()).equals("CHUNK")) {
+                ByteBuffer chunk = channel.readChunk();
+                received += chunk.remaining();
+                BufferPool.release(chunk);
+            }
+        }
+        sender.join();
+
+        if (received != totalBytes) {
+            throw new IOException("Received " + received + " of " + totalBytes + " bytes");
+        }
+    }
+
+    /**
+     * An older peer never resets, so a repeated Boolean arrives as a back-reference.
+     * Whether the next value is read unshared must not depend on a value reading "CHUNK".
+     */
+    private static void checkChunkNamedValue(ServerSocket listener) throws Exception {
+        Thread sender = startSender(listener.getLocalPort(), socket -> {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.writeObject(Boolean.TRUE);
+            out.writeObject("CHUNK");
+            out.writeObject(Boolean.TRUE);
+            out.flush();
+            socket.getInputStream().read();
+        });
+
+        try (Socket socket = listener.accept(); ControlChannel channel = ControlChannel.accept(socket)) {
+            channel.readObject();
+            Object name = channel.readObject();
+            Object flag = channel.readObject();
+            if (!"CHUNK".equals(name) || !Boolean.TRUE.equals(flag)) {
+                throw new IOException("Read " + name + ", " + flag + " instead of CHUNK, true");
+            }
+        }
+        sender.join();
+    }
+
+    private interface SenderBody {
+        void run(Socket socket) throws IOException;
+    }
+
+    private static Thread startSender(int port, SenderBody body) {
+        Thread sender = new Thread(() -> {
+            try (Socket socket = new Socket("localhost", port)) {
+                body.run(socket);
+            } catch (IOException e) {
+                System.err.println("Sender failed: " + e);
+            }
+        }, "memory-check-sender");
+        sender.start();
+        return sender;
+    }
+}
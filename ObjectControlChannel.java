@@ -0,0 +1,96 @@
+package FileServer;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Legacy protocol: every value is a serialized Java object.
+ *
+ * Object streams remember every object written or read so they can send
+ * back-references, which on a long session would keep every past chunk reachable.
+ * The writing side therefore resets its stream (which also clears the peer's read
+ * table) after RESET_BYTES of chunk data or RESET_VALUES values, and whenever a
+ * response is flushed. Upload chunks are always fresh arrays, so readChunk reads
+ * them unshared and they never enter the read table, even from peers that never reset.
+ */
+public class ObjectControlChannel implements ControlChannel {
+    private static final long RESET_BYTES = 1024 * 1024;
+    private static final int RESET_VALUES = 1024;
+
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    private long bytesSinceReset = 0;
+    private int valuesSinceReset = 0;
+
+    public ObjectControlChannel(ObjectOutputStream out, ObjectInputStream in) {
+        this.out = out;
+        this.in = in;
+    }
+
+    // Client side: the stream header doubles as the legacy handshake
+    public static ObjectControlChannel connect(Socket socket) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+        return new ObjectControlChannel(out, in);
+    }
+
+    @Override
+    public void writeObject(Object value) throws IOException {
+        out.writeObject(value);
+        valuesSinceReset++;
+        if (value instanceof byte[]) {
+            bytesSinceReset += ((byte[]) value).length;
+        }
+        if (bytesSinceReset >= RESET_BYTES || valuesSinceReset >= RESET_VALUES) {
+            reset();
+        }
+    }
+
+    @Override
+    public Object readObject() throws IOException, ClassNotFoundException {
+        return in.readObject();
+    }
+
+    @Override
+    public ByteBuffer readChunk() throws IOException, ClassNotFoundException {
+        Object value = in.readUnshared();
+        if (!(value instanceof byte[])) {
+            throw new StreamCorruptedException("Expected chunk data, got " + value.getClass().getSimpleName());
+        }
+        return ByteBuffer.wrap((byte[]) value);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // A flush ends a response, so nothing sent so far will be referred to again
+        if (valuesSinceReset > 0) {
+            reset();
+        }
+        out.flush();
+    }
+
+    private void reset() throws IOException {
+        out.reset();
+        bytesSinceReset = 0;
+        valuesSinceReset = 0;
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package FileServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every owner's public files, kept up to date as files are indexed.
+ *
+ * Readers get an immutable snapshot with a single volatile read, so listing the
+ * public files takes no lock and scans no private files. Writers copy the owner's
+ * list and the owner map and publish the new snapshot; updates are rare next to
+ * listings, and a copy costs only the owner's public files plus one entry per owner.
+ */
+public class PublicCatalog {
+    // Owner -> that owner's public files in upload order; never modified once published
+    private volatile Map<String, List<FileInfo>> snapshot = Collections.emptyMap();
+
+    /**
+     * @return owner -> public files; the map and lists are unmodifiable
+     */
+    public Map<String, List<FileInfo>> snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Apply one change to an owner's files.
+     * @param removed the entry that left the index (deleted or replaced), or null
+     * @param added   the entry that was indexed, or null
+     */
+    public synchronized void update(String owner, FileInfo removed, FileInfo added) {
+        boolean removesPublic = removed != null && removed.isPublic();
+        boolean addsPublic = added != null && added.isPublic();
+        if (!removesPublic && !addsPublic) {
+            return;
+        }
+
+        List<FileInfo> files = new ArrayList<>(snapshot.getOrDefault(owner, Collections.emptyList()));
+        if (removesPublic) {
+            files.removeIf(file -> file.getFileName().equals(removed.getFileName()));
+        }
+        if (addsPublic) {
+            // Like the owner's index, a replaced file moves to the end
+            files.add(added);
+        }
+
+        Map<String, List<FileInfo>> next = new HashMap<>(snapshot);
+        if (files.isEmpty()) {
+            next.remove(owner);
+        } else {
+            next.put(owner, Collections.unmodifiableList(files));
+        }
+        snapshot = Collections.unmodifiableMap(next);
+    }
+}
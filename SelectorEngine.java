@@ -0,0 +1,135 @@
+package FileServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Event-loop engine: sessions waiting for their next request are parked on a
+ * Selector, so an idle client costs a registration instead of a thread.
+ * When a parked channel becomes readable it is switched back to blocking mode
+ * and handed to a worker pool, which serves one request and parks it again.
+ */
+public class SelectorEngine implements ConnectionEngine {
+    private final Selector selector;
+    private final Queue<Parked> toRegister = new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers;
+
+    private static class Parked {
+        final SocketChannel channel;
+        final ClientSession session;
+
+        Parked(SocketChannel channel, ClientSession session) {
+            this.channel = channel;
+            this.session = session;
+        }
+    }
+
+    public SelectorEngine() {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open selector", e);
+        }
+        // Threads exist only for sessions that are actively being served
+        this.workers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread loop = new Thread(this::eventLoop, "selector-engine");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    @Override
+    public void serve(ServerSocketChannel serverChannel, Function<Socket, ClientSession> sessionFactory) throws IOException {
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            ClientSession session = sessionFactory.apply(channel.socket());
+            workers.execute(() -> step(channel, session, session::open));
+        }
+    }
+
+    /**
+     * Run one step of a session on a worker, then park it again or close it.
+     * A step that throws closes the session, so its user is logged out and the socket released.
+     */
+    private void step(SocketChannel channel, ClientSession session, BooleanSupplier step) {
+        boolean keepOpen = false;
+        try {
+            keepOpen = step.getAsBoolean();
+        } catch (RuntimeException e) {
+            System.err.println("Session failed: " + e);
+        } finally {
+            if (keepOpen) {
+                park(channel, session);
+            } else {
+                session.close();
+            }
+        }
+    }
+
+    private void park(SocketChannel channel, ClientSession session) {
+        toRegister.add(new Parked(channel, session));
+        selector.wakeup();
+    }
+
+    private void eventLoop() {
+        while (true) {
+            try {
+                selector.select();
+
+                Parked parked;
+                while ((parked = toRegister.poll()) != null) {
+                    try {
+                        parked.channel.configureBlocking(false);
+                        parked.channel.register(selector, SelectionKey.OP_READ, parked.session);
+                    } catch (IOException e) {
+                        parked.session.close();
+                    }
+                }
+
+                // Cancel every ready key, then flush the cancellations with selectNow so the
+                // channels can go back to blocking mode; repeat for keys that selectNow picks up
+                List<SelectionKey> ready = new ArrayList<>();
+                do {
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        key.cancel();
+                        ready.add(key);
+                    }
+                } while (selector.selectNow() > 0 || !selector.selectedKeys().isEmpty());
+
+                for (SelectionKey key : ready) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    ClientSession session = (ClientSession) key.attachment();
+                    try {
+                        channel.configureBlocking(true);
+                    } catch (IOException e) {
+                        session.close();
+                        continue;
+                    }
+                    workers.execute(() -> step(channel, session, session::serveNext));
+                }
+            } catch (IOException e) {
+                System.err.println("Selector engine error: " + e.getMessage());
+            }
+        }
+    }
+}
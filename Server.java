@@ -1,61 +1,108 @@
 package FileServer;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Server {
     private static final int PORT = 6666;
     private static final int NOTIFY_PORT = 6667;
+    public static final int DATA_PORT = 6668;
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final long METRICS_INTERVAL_MS = 60_000;
     public static final String BASE_DIRECTORY = "server_files";
     private static final String FILES_LOG = BASE_DIRECTORY + File.separator + "files.log";
+    private static final String BLOBS_DIRECTORY = BASE_DIRECTORY + File.separator + ".blobs";
     public static final String MESSAGES_SUFFIX = "_messages.txt";
+    private static final String UPLOAD_TEMP_SUFFIX = ".part";
+    // How long an interrupted upload stays resumable
+    private static final long DETACHED_UPLOAD_TTL_MS = 30 * 60_000;
+    // An attached upload that sends nothing for this long is detached and its buffer reclaimed
+    private static final long UPLOAD_IDLE_TIMEOUT_MS = 5 * 60_000;
+    private static final long UPLOAD_REAPER_INTERVAL_MS = 60_000;
+    // Bytes kept memory-mapped for hot public files, -Dfileserver.mapCacheMb (0 disables)
+    private static final long MAP_CACHE_BYTES = Long.getLong("fileserver.mapCacheMb", 256) * 1024 * 1024;
+    // Concurrent transfer slots, and bandwidth limits in KB/s (0 = unlimited)
+    private static final int MAX_TRANSFERS = Integer.getInteger("fileserver.maxTransfers", 64);
+    private static final int MAX_USER_TRANSFERS = Integer.getInteger("fileserver.maxUserTransfers", 4);
+    private static final long TOTAL_BANDWIDTH = Long.getLong("fileserver.totalBandwidthKBps", 0) * 1024;
+    private static final long USER_BANDWIDTH = Long.getLong("fileserver.userBandwidthKBps", 0) * 1024;
+    // How long a transfer may wait in the queue for a slot or buffer space
+    public static final long ADMISSION_TIMEOUT_MS = 2 * 60_000;
+    
+    // Shared state lives in concurrent collections instead of behind a class-wide lock.
+    // Each user's file index is guarded by its own monitor, so one user's upload
+    // never blocks another user's listing or chunk ACK.
     
     // Track online users
-    private static Set<String> onlineUsers = new HashSet<>();
+    private static Set<String> onlineUsers = ConcurrentHashMap.newKeySet();
 
-    // Track notification channels: username -> ObjectOutputStream
-    private static Map<String, ObjectOutputStream> notifierStreams = new HashMap<>();
+    // Track notification channels: username -> subscriber with its outbound queue
+    private static Map<String, NotificationWorker> notifiers = new ConcurrentHashMap<>();
     
     // Track all registered users (who have connected at least once)
-    private static Set<String> registeredUsers = new HashSet<>();
+    private static Set<String> registeredUsers = ConcurrentHashMap.newKeySet();
     
-    // Track all files: username -> List of FileInfo
-    private static Map<String, List<FileInfo>> userFiles = new HashMap<>();
+    // Track all files: username -> that user's file index (also the user's lock)
+    private static Map<String, UserFileIndex> userFiles = new ConcurrentHashMap<>();
+    
+    // Track all files by ID: fileId -> FileInfo
+    private static Map<String, FileInfo> filesById = new ConcurrentHashMap<>();
+    
+    // Public files by owner, maintained alongside the indexes above
+    private static PublicCatalog publicCatalog = new PublicCatalog();
     
     // Track active uploads: fileID -> UploadSession
-    private static Map<String, UploadSession> activeUploads = new HashMap<>();
+    private static Map<String, UploadSession> activeUploads = new ConcurrentHashMap<>();
     
     // Track all requests by ID
-    private static Map<String, FileRequest> requestsById = new HashMap<>();
+    private static Map<String, FileRequest> requestsById = new ConcurrentHashMap<>();
+    
+    // Append-only journal of file metadata
+    private static FileJournal fileJournal = new FileJournal(FILES_LOG, Server::getAllFiles);
+    
+    // Deduplicated file contents, addressed by SHA-256
+    private static BlobStore blobStore = new BlobStore(BLOBS_DIRECTORY);
     
     // Message manager for persistent message storage
     private static MessageManager messageManager = new MessageManager();
     
+    // Delivers broadcast requests in the background
+    private static BroadcastFanout broadcastFanout = new BroadcastFanout(messageManager, () -> onlineUsers);
+    
     // Activity log for tracking uploads, downloads, and requests
     private static ActivityLog activityLog = new ActivityLog();
     
+    // Raw socket channel for zero-copy downloads
+    private static DataChannelServer dataChannelServer = new DataChannelServer();
+    
+    // Queues transfers and shares bandwidth between users
+    private static TransferScheduler transferScheduler = new TransferScheduler(MAX_TRANSFERS, MAX_USER_TRANSFERS,
+            TOTAL_BANDWIDTH, USER_BANDWIDTH, System.getProperty("fileserver.userWeights"));
+    
+    // Memory-mapped contents of frequently downloaded files
+    private static MappedFileCache mappedFileCache = new MappedFileCache(MAP_CACHE_BYTES);
+    
     // Configuration parameters
     public static final int MAX_BUFFER_SIZE = 10 * 1024 * 1024; // 10 MB
     public static final int MIN_CHUNK_SIZE = 2 * 1024; // 2 KB
     public static final int MAX_CHUNK_SIZE = 100 * 1024; // 200 KB
+    // Unacknowledged bytes a windowed upload may have in flight
+    private static final int UPLOAD_WINDOW_BYTES = 1024 * 1024; // 1 MB
+    private static final int MAX_UPLOAD_WINDOW = 256; // chunks
     
-    private static int currentBufferSize = 0;
-    private static Random random = new Random();
+    // Chunk buffers of attached uploads, leased per session
+    private static BufferBudget bufferBudget = new BufferBudget(MAX_BUFFER_SIZE);
     
     public static void main(String[] args) {
         // Create base directory for server files
@@ -66,50 +113,79 @@ public class Server {
         } else {
             // Load existing users from directories
             loadExistingUsers();
-            // Load file metadata from log
-            loadFilesFromLog();
         }
         
-        // Ensure files.log exists
-        File logFile = new File(FILES_LOG);
-        if (!logFile.exists()) {
-            try {
-                logFile.createNewFile();
-                System.out.println("Created files log: " + FILES_LOG);
-            } catch (IOException e) {
-                System.err.println("Error creating files log: " + e.getMessage());
-            }
+        // Load file metadata from the journal (created if missing)
+        try {
+            fileJournal.open(Server::indexFile, Server::unindexFile);
+        } catch (IOException e) {
+            System.err.println("Error opening files log: " + e.getMessage());
+            return;
         }
+        // If the journal could not be read in full, blobs that look unreferenced may not be
+        blobStore.rebuild(getAllFiles(), !fileJournal.hasUnreadableRecords());
         
-        try (ServerSocket welcomeSocket = new ServerSocket(PORT);
-            ServerSocket notifySocket = new ServerSocket(NOTIFY_PORT)) {
-            System.out.println("Server started on port " + PORT);
+        ConnectionEngine engine = ConnectionEngine.create(System.getProperty("fileserver.engine", "threads"));
+        
+        try (ServerSocketChannel welcomeChannel = ServerSocketChannel.open();
+            ServerSocketChannel notifyChannel = ServerSocketChannel.open()) {
+            welcomeChannel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+            notifyChannel.bind(new InetSocketAddress(NOTIFY_PORT), ACCEPT_BACKLOG);
+            System.out.println("Server started on port " + PORT + " (" + engine.getClass().getSimpleName() + ")");
             System.out.println("Notification server started on port " + NOTIFY_PORT);
             System.out.println("Waiting for connections...");
 
             Thread notifyAcceptThread = new Thread(() -> {
+                try {
+                    engine.serve(notifyChannel, NotificationWorker::new);
+                } catch (IOException e) {
+                    System.err.println("Notification server error: " + e.getMessage());
+                }
+            });
+            notifyAcceptThread.setDaemon(true);
+            notifyAcceptThread.start();
+            
+            dataChannelServer.start(DATA_PORT);
+            
+            // Report notification queue metrics periodically
+            Thread metricsThread = new Thread(() -> {
+                String last = "";
                 while (true) {
                     try {
-                        Socket socket = notifySocket.accept();
-                        NotificationWorker notificationWorker = new NotificationWorker(socket);
-                        notificationWorker.start();
-                    } catch (IOException e) {
-                        System.err.println("Notification server error: " + e.getMessage());
-                        break;
+                        Thread.sleep(METRICS_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    String metrics = getNotificationMetrics() + "; " + transferScheduler.metricsSummary() +
+                                     "; " + bufferBudget.metricsSummary() + "; " + mappedFileCache.metricsSummary();
+                    if (!metrics.equals(last)) {
+                        System.out.println("[metrics] " + metrics);
+                        last = metrics;
                     }
                 }
             });
-            notifyAcceptThread.setDaemon(true);
-            notifyAcceptThread.start();
+            metricsThread.setDaemon(true);
+            metricsThread.start();
+            
+            // Detach stalled uploads and discard interrupted ones nobody resumed in time
+            Thread reaperThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(UPLOAD_REAPER_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    reapUploads();
+                }
+            }, "upload-reaper");
+            reaperThread.setDaemon(true);
+            reaperThread.start();
             
-            while (true) {
-                Socket socket = welcomeSocket.accept();
+            // Create a worker session for each client
+            engine.serve(welcomeChannel, socket -> {
                 System.out.println("New connection from: " + socket.getInetAddress() + ":" + socket.getPort());
-                
-                // Create worker thread for this client
-                Worker worker = new Worker(socket);
-                worker.start();
-            }
+                return new Worker(socket);
+            });
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
             e.printStackTrace();
@@ -119,7 +195,8 @@ public class Server {
 
     private static void loadExistingUsers() {
         File baseDir = new File(BASE_DIRECTORY);
-        File[] userDirs = baseDir.listFiles(File::isDirectory);
+        // Dot directories (the blob store) are not users
+        File[] userDirs = baseDir.listFiles(dir -> dir.isDirectory() && !dir.getName().startsWith("."));
         
         if (userDirs != null && userDirs.length > 0) {
             System.out.println("Loading existing users from directories...");
@@ -127,6 +204,16 @@ public class Server {
                 String username = userDir.getName();
                 registeredUsers.add(username);
                 System.out.println("  - Loaded user: " + username);
+                
+                // Remove temp files (.<fileId>.part) left behind by uploads interrupted by a shutdown,
+                // leaving alone user files that merely end in .part
+                File[] staleParts = userDir.listFiles((dir, name) -> name.startsWith(".")
+                                                                     && name.endsWith(UPLOAD_TEMP_SUFFIX));
+                if (staleParts != null) {
+                    for (File part : staleParts) {
+                        part.delete();
+                    }
+                }
             }
             System.out.println("Total users loaded: " + registeredUsers.size());
         } else {
@@ -134,88 +221,17 @@ public class Server {
         }
     }
     
-    private static void loadFilesFromLog() {
-        File logFile = new File(FILES_LOG);
-        if (!logFile.exists()) {
-            System.out.println("No files log found. Starting fresh.");
-            return;
-        }
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-            System.out.println("Loading files from log...");
-            String line;
-            int fileCount = 0;
-            
-            while ((line = reader.readLine()) != null) {
-                // Format: username|fileId|fileName|fileSize|isPublic
-                String[] parts = line.split("\\|");
-                if (parts.length == 5) {
-                    String username = parts[0];
-                    String fileId = parts[1];
-                    String fileName = parts[2];
-                    long fileSize = Long.parseLong(parts[3]);
-                    boolean isPublic = Boolean.parseBoolean(parts[4]);
-                    
-                    FileInfo fileInfo = new FileInfo(fileId, fileName, fileSize, isPublic);
-                    userFiles.computeIfAbsent(username, k -> new ArrayList<>()).add(fileInfo);
-                    fileCount++;
-                }
-            }
-            
-            System.out.println("Total files loaded: " + fileCount);
-        } catch (IOException e) {
-            System.err.println("Error loading files log: " + e.getMessage());
-        }
-    }
-    
-    private static void saveFileToLog(String username, FileInfo fileInfo) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(FILES_LOG, true))) {
-            // Format: username|fileId|fileName|fileSize|isPublic
-            String line = username + "|" + fileInfo.getFileId() + "|" + 
-                         fileInfo.getFileName() + "|" + fileInfo.getFileSize() + "|" + 
-                         fileInfo.isPublic();
-            writer.write(line);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Error writing to files log: " + e.getMessage());
-        }
-    }
-    
-    private static void removeFileFromLog(String username, String fileName) {
-        File logFile = new File(FILES_LOG);
-        File tempFile = new File(FILES_LOG + ".tmp");
-        
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFile));
-             BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
-            
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|");
-                // Keep line if it doesn't match username and filename
-                if (parts.length == 5 && !(parts[0].equals(username) && parts[2].equals(fileName))) {
-                    writer.write(line);
-                    writer.newLine();
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error updating files log: " + e.getMessage());
-            return;
+    public static boolean loginUser(String username) {
+        // Dot directories hold server data (the blob store), so no user may map onto one
+        if (username.startsWith(".")) {
+            return false;
         }
         
-        // Replace old log with updated one
-        if (!logFile.delete() || !tempFile.renameTo(logFile)) {
-            System.err.println("Error replacing files log");
-        }
-    }
-    
-    public synchronized static boolean loginUser(String username) {
-        // Check if user is already online
-        if (onlineUsers.contains(username)) {
+        // Check if user is already online (add is atomic, so two logins cannot both win)
+        if (!onlineUsers.add(username)) {
             // System.out.println("User already logged in!");
             return false; 
         }
-
-        onlineUsers.add(username);
         
         // Create directory if first time user
         if (!registeredUsers.contains(username)) {
@@ -225,6 +241,7 @@ public class Server {
                 dir.mkdir();
                 System.out.println("Created directory for new user: " + username);
             }
+            messageManager.registerUser(username);
             registeredUsers.add(username);
         }
         
@@ -232,37 +249,36 @@ public class Server {
         return true;
     }
     
-    public synchronized static void logoutUser(String username) {
+    public static void logoutUser(String username) {
         onlineUsers.remove(username);
         System.out.println("User logged out: " + username);
     }
 
-    public static synchronized void registerNotifier(String username, ObjectOutputStream out) {
-        notifierStreams.put(username, out);
+    public static void registerNotifier(String username, NotificationWorker notifier) {
+        notifiers.put(username, notifier);
     }
 
-    public static synchronized void unregisterNotifier(String username, ObjectOutputStream out) {
-        ObjectOutputStream current = notifierStreams.get(username);
-        if (current == out) {
-            notifierStreams.remove(username);
-        }
+    public static void unregisterNotifier(String username, NotificationWorker notifier) {
+        notifiers.remove(username, notifier);
     }
 
-    public static synchronized void sendNotification(String username, String message) {
-        ObjectOutputStream notifyOut = notifierStreams.get(username);
-        if (notifyOut == null) return;
-        try {
-            synchronized (notifyOut) {
-                notifyOut.writeObject(message);
-                notifyOut.flush();
-            }
-        } catch (IOException e) {
-            notifierStreams.remove(username);
+    // Queues the notification; a slow subscriber never blocks the caller
+    public static void sendNotification(String username, String message) {
+        NotificationWorker notifier = notifiers.get(username);
+        if (notifier == null) return;
+        notifier.enqueue(message);
+    }
+    
+    public static String getNotificationMetrics() {
+        int queued = 0;
+        for (NotificationWorker notifier : notifiers.values()) {
+            queued += notifier.getQueueDepth();
         }
+        return NotificationWorker.metricsSummary() + " subscribers=" + notifiers.size() + " queued=" + queued;
     }
     
 
-    public synchronized static Map<String, Boolean> getAllUsers() {
+    public static Map<String, Boolean> getAllUsers() {
         Map<String, Boolean> allUsers = new HashMap<>();
         for (String username : registeredUsers) {
             allUsers.put(username, onlineUsers.contains(username));
@@ -270,95 +286,152 @@ public class Server {
         return allUsers;
     }
 
-    public synchronized static List<FileInfo> getUserFiles(String username){
-        return userFiles.getOrDefault(username, new ArrayList<>());
+    public static List<FileInfo> getUserFiles(String username){
+        UserFileIndex index = userFiles.get(username);
+        if (index == null) return new ArrayList<>();
+        
+        // Hand out a snapshot so callers never iterate while an upload edits the index
+        return index.snapshot();
     }
     
-    public synchronized static Map<String, List<FileInfo>> getAllPublicFiles(String excludeUsername) {
-        Map<String, List<FileInfo>> publicFiles = new HashMap<>();
-        
-        for (Map.Entry<String, List<FileInfo>> entry : userFiles.entrySet()) {
-            String owner = entry.getKey();
-            // Skip the requesting user's files
-            if (owner.equals(excludeUsername)) {
-                continue;
-            }
-            
-            List<FileInfo> userPublicFiles = new ArrayList<>();
-            for (FileInfo file : entry.getValue()) {
-                if (file.isPublic()) {
-                    userPublicFiles.add(file);
-                }
-            }
-            
-            if (!userPublicFiles.isEmpty()) {
-                publicFiles.put(owner, userPublicFiles);
-            }
+    /**
+     * Public files of every owner but excludeUsername, as an unmodifiable snapshot.
+     */
+    public static Map<String, List<FileInfo>> getAllPublicFiles(String excludeUsername) {
+        Map<String, List<FileInfo>> publicFiles = publicCatalog.snapshot();
+        if (!publicFiles.containsKey(excludeUsername)) {
+            return publicFiles;
         }
         
-        return publicFiles;
+        // Skip the requesting user's files
+        Map<String, List<FileInfo>> others = new HashMap<>(publicFiles);
+        others.remove(excludeUsername);
+        return Collections.unmodifiableMap(others);
     }
     
-    public synchronized static FileInfo getFileInfo(String owner, String fileName) {
-        List<FileInfo> files = userFiles.get(owner);
-        if (files == null) return null;
+    public static FileInfo getFileInfo(String owner, String fileName) {
+        UserFileIndex index = userFiles.get(owner);
+        if (index == null) return null;
         
-        for (FileInfo file : files) {
-            if (file.getFileName().equals(fileName)) {
-                return file;
-            }
+        return index.get(fileName);
+    }
+    
+    // Snapshot of every file, used to compact the journal
+    private static List<FileInfo> getAllFiles() {
+        List<FileInfo> all = new ArrayList<>();
+        for (UserFileIndex index : userFiles.values()) {
+            all.addAll(index.snapshot());
         }
-        return null;
+        return all;
     }
     
+    public static FileInfo getFileInfoById(String fileId) {
+        return filesById.get(fileId);
+    }
     
+    // Add a file to both indexes, dropping any file it replaces; returns the replaced entry
+    private static FileInfo indexFile(FileInfo fileInfo) {
+        UserFileIndex index = userFiles.computeIfAbsent(fileInfo.getOwner(), k -> new UserFileIndex());
+        FileInfo previous = index.put(fileInfo);
+        if (previous != null) {
+            filesById.remove(previous.getFileId());
+        }
+        filesById.put(fileInfo.getFileId(), fileInfo);
+        publicCatalog.update(fileInfo.getOwner(), previous, fileInfo);
+        return previous;
+    }
     
-    public synchronized static boolean fileExists(String username, String fileName) {
-        List<FileInfo> files = userFiles.get(username);
-        if (files == null) return false;
+    private static void unindexFile(String owner, String fileName) {
+        UserFileIndex index = userFiles.get(owner);
+        if (index == null) return;
         
-        for (FileInfo file : files) {
-            if (file.getFileName().equals(fileName)) {
-                return true;
-            }
+        FileInfo removed = index.remove(fileName);
+        if (removed != null) {
+            filesById.remove(removed.getFileId());
+            publicCatalog.update(owner, removed, null);
         }
-        return false;
     }
     
-    public synchronized static String initiateUpload(String username, String fileName, long fileSize) {
-        // Check buffer capacity
-        if (!canAllocateBuffer(fileSize)) {
+    public static boolean fileExists(String username, String fileName) {
+        UserFileIndex index = userFiles.get(username);
+        return index != null && index.contains(fileName);
+    }
+    
+    public static String initiateUpload(String username, String fileName, long fileSize, boolean isPublic, String requestId) {
+        // Size chunks for the file and the current buffer pressure
+        int chunkSize = ChunkSizePolicy.initialChunkSize(fileSize, getBufferPressure());
+        
+        // Only the chunk in flight is held in memory, so lease one chunk rather than the whole file.
+        // When the budget is spent the upload queues for space instead of being turned away.
+        BufferBudget.Lease lease = bufferBudget.acquire(chunkSize, ADMISSION_TIMEOUT_MS);
+        if (lease == null) {
             return null; // Cannot allocate
         }
         
-        // Generate random chunk size
-        int chunkSize = MIN_CHUNK_SIZE + random.nextInt(MAX_CHUNK_SIZE - MIN_CHUNK_SIZE + 1);
-        
         // Generate unique file ID
         String fileId = UUID.randomUUID().toString();
         
-        // Create upload session
-        UploadSession session = new UploadSession(username, fileName, fileSize, chunkSize);
+        // Create upload session streaming into a temp file in the user's directory
+        String userDir = BASE_DIRECTORY + File.separator + username;
+        File tempFile = new File(userDir, "." + fileId + UPLOAD_TEMP_SUFFIX);
+        UploadSession session;
+        try {
+            session = new UploadSession(username, fileName, fileSize, isPublic, requestId, lease, tempFile);
+        } catch (IOException e) {
+            System.err.println("Error creating upload temp file: " + e.getMessage());
+            lease.release();
+            return null;
+        }
         activeUploads.put(fileId, session);
         
-        // Reserve buffer space
-        updateBufferSize((int) fileSize);
-        
         return fileId + ":" + chunkSize;
     }
     
-    public synchronized static boolean receiveChunk(String fileId, byte[] chunk) {
+    /**
+     * Number of chunks a client may send ahead of the server's acknowledgements.
+     * Chunks are written straight to the temp file, so the window only bounds
+     * what sits in socket buffers, not server memory.
+     */
+    public static int getUploadWindow(int chunkSize) {
+        return Math.max(1, Math.min(MAX_UPLOAD_WINDOW, UPLOAD_WINDOW_BYTES / chunkSize));
+    }
+    
+    /**
+     * Move an upload's buffer lease to a new chunk size.
+     * @return the chunk size in effect afterwards; growth is refused if the budget cannot cover it
+     */
+    public static int resizeChunks(String fileId, int chunkSize) {
+        UploadSession session = activeUploads.get(fileId);
+        if (session == null) {
+            return chunkSize;
+        }
+        synchronized (session) {
+            return session.resizeChunks(chunkSize) ? chunkSize : session.getChunkSize();
+        }
+    }
+    
+    public static double getBufferPressure() {
+        return bufferBudget.pressure();
+    }
+    
+    public static boolean receiveChunk(String fileId, ByteBuffer chunk) {
         UploadSession session = activeUploads.get(fileId);
         if (session == null) {
             return false;
         }
         
-        session.addChunk(chunk);
+        try {
+            session.addChunk(chunk);
+        } catch (IOException e) {
+            System.err.println("Error writing chunk for upload " + fileId + ": " + e.getMessage());
+            return false;
+        }
         return true;
     }
     
-    public synchronized static String completeUpload(String fileId, boolean isPublic) {
-        UploadSession session = activeUploads.get(fileId);
+    public static String completeUpload(String fileId, boolean isPublic) {
+        // Claim the session so nothing else can complete or cancel it concurrently
+        UploadSession session = activeUploads.remove(fileId);
         if (session == null) {
             return "ERROR: Upload session not found";
         }
@@ -366,87 +439,180 @@ public class Server {
         // Verify file size
         if (session.getReceivedSize() != session.getExpectedSize()) {
             // Cleanup failed upload
-            activeUploads.remove(fileId);
-            updateBufferSize(-(int) session.getExpectedSize());
+            session.discard();
             return "ERROR: File size mismatch";
         }
         
-        // Write file to disk
+        String username = session.getUsername();
+        UserFileIndex index = userFiles.computeIfAbsent(username, k -> new UserFileIndex());
+        
+        // Store the content once; a duplicate upload only adds a reference
+        String contentHash;
         try {
-            String userDir = BASE_DIRECTORY + File.separator + session.getUsername();
-            File file = new File(userDir, session.getFileName());
-            
-            java.io.FileOutputStream fos = new java.io.FileOutputStream(file);
-            for (byte[] chunk : session.getChunks()) {
-                fos.write(chunk);
+            contentHash = session.contentHash();
+            boolean duplicate = blobStore.store(contentHash, session);
+            if (duplicate) {
+                System.out.println("Upload " + fileId + " matches stored content " + contentHash + ", not stored again");
             }
-            fos.close();
+        } catch (IOException e) {
+            session.discard();
+            return "ERROR: " + e.getMessage();
+        }
+        
+        long journalSeq;
+        FileInfo fileInfo = new FileInfo(username, fileId, session.getFileName(), session.getExpectedSize(),
+                                         isPublic, contentHash);
+        FileInfo replaced;
+        synchronized (index) {
+            // Add to user files, replacing the old entry if the file already exists
+            replaced = indexFile(fileInfo);
             
-            // Remove old entry if file already exists (replacement)
-            List<FileInfo> files = userFiles.get(session.getUsername());
-            if (files != null) {
-                boolean wasReplaced = files.removeIf(f -> f.getFileName().equals(session.getFileName()));
-                if (wasReplaced) {
-                    // Remove old entry from log
-                    removeFileFromLog(session.getUsername(), session.getFileName());
-                }
+            // Queue the journal records while still holding the index, so they stay in index order
+            if (replaced != null) {
+                journalSeq = fileJournal.enqueue(FileJournal.deleteRecord(username, fileInfo.getFileName()),
+                                                 FileJournal.addRecord(fileInfo));
+            } else {
+                journalSeq = fileJournal.enqueue(FileJournal.addRecord(fileInfo));
             }
-            
-            // Add to user files
-            FileInfo fileInfo = new FileInfo(fileId, session.getFileName(), session.getExpectedSize(), isPublic);
-            userFiles.computeIfAbsent(session.getUsername(), k -> new ArrayList<>()).add(fileInfo);
-            
-            // Save to persistent log
-            saveFileToLog(session.getUsername(), fileInfo);
-            
-            // Cleanup
-            activeUploads.remove(fileId);
-            updateBufferSize(-(int) session.getExpectedSize());
-            
-            return "SUCCESS: File uploaded successfully";
-            
+        }
+        
+        try {
+            // Wait for the group commit outside the lock
+            fileJournal.awaitDurable(journalSeq);
         } catch (IOException e) {
-            activeUploads.remove(fileId);
-            updateBufferSize(-(int) session.getExpectedSize());
+            // The upload is reported as failed, so it must not stay listed either: restore the
+            // file it replaced. If a later upload already replaced it, that upload owns the cleanup.
+            boolean rolledBack = false;
+            synchronized (index) {
+                if (index.get(fileInfo.getFileName()) == fileInfo) {
+                    unindexFile(username, fileInfo.getFileName());
+                    if (replaced != null) {
+                        indexFile(replaced);
+                    }
+                    rolledBack = true;
+                }
+            }
+            if (rolledBack) {
+                blobStore.release(contentHash);
+            } else if (replaced != null) {
+                releaseStorage(replaced);
+            }
             return "ERROR: " + e.getMessage();
         }
+        
+        // Only drop the replaced content once the journal no longer points at it
+        if (replaced != null) {
+            releaseStorage(replaced);
+        }
+        
+        return "SUCCESS: File uploaded successfully";
     }
     
-    public synchronized static void cancelUpload(String fileId) {
-        UploadSession session = activeUploads.remove(fileId);
-        if (session != null) {
-            updateBufferSize(-(int) session.getExpectedSize());
+    /**
+     * Where a file's bytes live: its blob, or the owner's directory for files
+     * uploaded before the blob store existed.
+     */
+    public static File getStoredFile(FileInfo fileInfo) {
+        if (fileInfo.getBlobHash() != null) {
+            return blobStore.blobFile(fileInfo.getBlobHash());
         }
+        return new File(BASE_DIRECTORY + File.separator + fileInfo.getOwner(), fileInfo.getFileName());
     }
     
-
+    private static void releaseStorage(FileInfo fileInfo) {
+        File file = getStoredFile(fileInfo);
+        if (fileInfo.getBlobHash() != null) {
+            // Other entries may still share the blob; keep serving it from memory then
+            if (blobStore.release(fileInfo.getBlobHash())) {
+                mappedFileCache.invalidate(file);
+            }
+        } else {
+            mappedFileCache.invalidate(file);
+            if (file.exists() && !file.delete()) {
+                System.err.println("Error deleting replaced file: " + file.getPath());
+            }
+        }
+    }
     
-    public synchronized static boolean canAllocateBuffer(long fileSize) {
-        return (currentBufferSize + fileSize) <= MAX_BUFFER_SIZE;
+    /**
+     * Keep an upload whose client disconnected so it can be resumed within the TTL.
+     * A detached session holds no chunk buffer.
+     */
+    public static void detachUpload(String fileId) {
+        UploadSession session = activeUploads.get(fileId);
+        if (session != null && session.detach()) {
+            System.out.println("Upload " + fileId + " interrupted at " + session.getReceivedSize() +
+                               " bytes; resumable for " + DETACHED_UPLOAD_TTL_MS / 60_000 + " minutes");
+        }
     }
     
-    public synchronized static void updateBufferSize(int delta) {
-        currentBufferSize += delta;
+    /**
+     * Reattach an interrupted upload to its owner.
+     * @return the session, positioned at its received size, or null if it cannot be resumed
+     */
+    public static UploadSession resumeUpload(String username, String fileId, long fileSize) {
+        UploadSession session = activeUploads.get(fileId);
+        if (session == null || !session.getUsername().equals(username) || session.getExpectedSize() != fileSize) {
+            return null;
+        }
+        
+        BufferBudget.Lease lease = bufferBudget.acquire(session.getChunkSize(), ADMISSION_TIMEOUT_MS);
+        if (lease == null) {
+            return null;
+        }
+        try {
+            if (session.reattach(lease)) {
+                return session;
+            }
+        } catch (IOException e) {
+            System.err.println("Error resuming upload " + fileId + ": " + e.getMessage());
+        }
+        lease.release();
+        return null;
     }
     
+    /**
+     * Detach attached uploads that have gone idle, so a client that vanished without
+     * closing its connection does not hold buffer space, and discard detached uploads
+     * nobody resumed within the TTL.
+     */
+    private static void reapUploads() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, UploadSession> entry : activeUploads.entrySet()) {
+            UploadSession session = entry.getValue();
+            if (session.detachIfIdleSince(now - UPLOAD_IDLE_TIMEOUT_MS)) {
+                System.out.println("Upload " + entry.getKey() + " idle for " + UPLOAD_IDLE_TIMEOUT_MS / 60_000 +
+                                   " minutes; detached at " + session.getReceivedSize() + " bytes");
+            } else if (session.expireIfDetachedBefore(now - DETACHED_UPLOAD_TTL_MS) &&
+                       activeUploads.remove(entry.getKey(), session)) {
+                session.discard();
+                System.out.println("Expired interrupted upload " + entry.getKey());
+            }
+        }
+    }
+    
+    /**
+     * Drop a failed or aborted upload. A session the reaper has already detached
+     * is left to be resumed or to expire.
+     */
+    public static void cancelUpload(String fileId) {
+        UploadSession session = activeUploads.get(fileId);
+        if (session != null && !session.isDetached() && activeUploads.remove(fileId, session)) {
+            session.discard();
+        }
+    }
+    
+
+    
     // File Request methods
-    public static synchronized void addFileRequest(FileRequest request) {
+    public static void addFileRequest(FileRequest request) {
         String recipient = request.getRecipient();
 
         requestsById.put(request.getRequestId(), request);
         
         if (recipient.equalsIgnoreCase("ALL")) {
-            // Broadcast to all registered users except the requester
-            for (String username : registeredUsers) {
-                if (!username.equals(request.getRequester())) {
-                    // Create message for this user
-                    String messageId = UUID.randomUUID().toString();
-                    String content = "File request (ID: " + request.getRequestId() + "): " + request.getDescription();
-                    Message message = new Message(messageId, Message.MessageType.FILE_REQUEST, 
-                                                  request.getRequester(), content);
-                    messageManager.addMessage(username, message);
-                }
-            }
+            // Mailboxes and notifications are filled in by the fan-out pipeline
+            broadcastFanout.submit(request);
         } else {
             // Unicast to specific user
             // Create message for recipient
@@ -458,7 +624,7 @@ public class Server {
         }
     }
 
-    public static synchronized FileRequest getRequestById(String requestId) {
+    public static FileRequest getRequestById(String requestId) {
         return requestsById.get(requestId);
     }
 
@@ -471,7 +637,7 @@ public class Server {
      * @param responder the username of the person fulfilling the request
      * @return the FileRequest if found, null otherwise
      */
-    public static synchronized FileRequest fulfillRequestById(String requestId, String responder) {
+    public static FileRequest fulfillRequestById(String requestId, String responder) {
         FileRequest request = requestsById.get(requestId);
         if (request == null) {
             return null;
@@ -480,26 +646,21 @@ public class Server {
         // Only remove the request if it was a unicast (to a specific user)
         // Broadcast requests ("ALL") remain available for multiple responses
         if (!request.getRecipient().equalsIgnoreCase("ALL")) {
-            requestsById.remove(requestId);
+            // Only one responder may claim a unicast request
+            if (!requestsById.remove(requestId, request)) {
+                return null;
+            }
         }
         
         return request;
     }
     
-    public static synchronized void sendRequestNotification(FileRequest request) {
+    public static void sendRequestNotification(FileRequest request) {
         String recipient = request.getRecipient();
         
         if (recipient.equalsIgnoreCase("ALL")) {
-            // Notify only online users except the requester
-            for (String username : onlineUsers) {
-                if (!username.equals(request.getRequester())) {
-                    try {
-                        sendNotification(username, "NEW_FILE_REQUEST (ID: " + request.getRequestId() + ") from " + request.getRequester() + ": " + request.getDescription());
-                    } catch (Exception e) {
-                        System.err.println("Error sending notification to " + username + ": " + e.getMessage());
-                    }
-                }
-            }
+            // Broadcast notifications are pushed by the fan-out queued in addFileRequest
+            return;
         } else {
             // Notify specific user only if online
             if (onlineUsers.contains(recipient)) {
@@ -514,22 +675,34 @@ public class Server {
     }
     
     // Message management methods
-    public static synchronized MessageManager getMessageManager() {
+    public static MessageManager getMessageManager() {
         return messageManager;
     }
     
-    public static synchronized void sendMessageNotification(String username, String notification) {
+    public static void sendMessageNotification(String username, String notification) {
         if (onlineUsers.contains(username)) {
             sendNotification(username, notification);
         }
     }
 
-    public static synchronized boolean isUserRegistered(String username) {
+    public static boolean isUserRegistered(String username) {
         return registeredUsers.contains(username);
     }
     
+    public static DataChannelServer getDataChannelServer() {
+        return dataChannelServer;
+    }
+    
+    public static TransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+    
+    public static MappedFileCache getMappedFileCache() {
+        return mappedFileCache;
+    }
+    
     // Activity log accessor
-    public static synchronized ActivityLog getActivityLog() {
+    public static ActivityLog getActivityLog() {
         return activityLog;
     }
 }
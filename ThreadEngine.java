@@ -0,0 +1,58 @@
+package FileServer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Function;
+
+/**
+ * Runs every session on its own thread, either a platform thread or a virtual thread.
+ * Virtual threads are looked up reflectively so the server still builds on JDKs
+ * without them; on such a JDK the engine falls back to platform threads.
+ */
+public class ThreadEngine implements ConnectionEngine {
+    private final MethodHandle startVirtualThread;
+
+    public ThreadEngine(boolean virtual) {
+        this.startVirtualThread = virtual ? lookupVirtualThreads() : null;
+    }
+
+    private static MethodHandle lookupVirtualThreads() {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+            // Probe once: on JDKs where virtual threads are a disabled preview this throws
+            Thread probe = (Thread) handle.invoke((Runnable) () -> { });
+            probe.join();
+            return handle;
+        } catch (Throwable e) {
+            System.err.println("Virtual threads unavailable on this JDK, using platform threads");
+            return null;
+        }
+    }
+
+    @Override
+    public void serve(ServerSocketChannel serverChannel, Function<Socket, ClientSession> sessionFactory) throws IOException {
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            ClientSession session = sessionFactory.apply(channel.socket());
+            start(() -> ClientSession.runToCompletion(session));
+        }
+    }
+
+    private void start(Runnable task) {
+        if (startVirtualThread != null) {
+            try {
+                startVirtualThread.invoke(task);
+                return;
+            } catch (Throwable e) {
+                System.err.println("Could not start virtual thread: " + e.getMessage());
+            }
+        }
+        new Thread(task).start();
+    }
+}
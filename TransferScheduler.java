@@ -0,0 +1,265 @@
+package FileServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control and bandwidth sharing for uploads and downloads.
+ *
+ * A transfer first takes a slot: at most maxTransfers run at once, and at most
+ * maxUserTransfers per user. Transfers that do not fit wait in a queue instead of
+ * being rejected; when a slot frees up it goes to the waiting user with the fewest
+ * running transfers, so one user queueing many files cannot hold the others back.
+ *
+ * Running transfers are paced by a token bucket per user. The total bandwidth is
+ * split between users with running transfers in proportion to their weight (1 unless
+ * listed in -Dfileserver.userWeights=alice=2,bob=3), capped by the per-user limit,
+ * and a user's transfers share that user's bucket. Rates of 0 mean unlimited.
+ */
+public class TransferScheduler {
+    // Tokens a bucket may bank while idle, as seconds of its rate
+    private static final double BURST_SECONDS = 0.25;
+
+    private final int maxTransfers;
+    private final int maxUserTransfers;
+    private final long totalRate;
+    private final long userRate;
+    private final Map<String, Double> weights;
+
+    // Guarded by this
+    private final Map<String, UserShare> shares = new HashMap<>();
+    private final List<Ticket> waiting = new ArrayList<>();
+    private int running = 0;
+
+    private static class UserShare {
+        final double weight;
+        final TokenBucket bucket = new TokenBucket();
+        int running = 0;
+        int waiting = 0;
+
+        UserShare(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Bytes a user may send or receive, refilled at the user's current share.
+     * Takes may drive the balance negative; the taker then sleeps off the debt,
+     * which also delays the user's other transfers behind it.
+     */
+    private static class TokenBucket {
+        private double rate = 0; // bytes per second, 0 = unlimited
+        private double tokens = 0;
+        private long refilledAt = System.nanoTime();
+
+        synchronized void setRate(double rate) {
+            refill();
+            this.rate = rate;
+            tokens = Math.min(tokens, rate * BURST_SECONDS);
+        }
+
+        // Nanoseconds the caller must wait before using the bytes
+        synchronized long take(int bytes) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(rate * BURST_SECONDS, tokens + rate * (now - refilledAt) / 1e9);
+            }
+            refilledAt = now;
+        }
+    }
+
+    /**
+     * One admitted transfer. Closing it frees the slot.
+     */
+    public class Ticket implements AutoCloseable {
+        private final String username;
+        private UserShare share;
+        private boolean closed = false;
+
+        private Ticket(String username) {
+            this.username = username;
+        }
+
+        /**
+         * Account for bytes moved by this transfer, sleeping if the user is over their share.
+         */
+        public void pace(int bytes) throws IOException {
+            long delay = share.bucket.take(bytes);
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+
+        /**
+         * A view of the channel that paces every write against this ticket.
+         */
+        public WritableByteChannel paced(WritableByteChannel out) {
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int written = out.write(src);
+                    pace(written);
+                    return written;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return out.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    public TransferScheduler(int maxTransfers, int maxUserTransfers, long totalRate, long userRate, String userWeights) {
+        this.maxTransfers = maxTransfers;
+        this.maxUserTransfers = maxUserTransfers;
+        this.totalRate = totalRate;
+        this.userRate = userRate;
+        this.weights = parseWeights(userWeights);
+    }
+
+    private static Map<String, Double> parseWeights(String spec) {
+        Map<String, Double> weights = new HashMap<>();
+        if (spec == null || spec.trim().isEmpty()) {
+            return weights;
+        }
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.split("=");
+            try {
+                double weight = Double.parseDouble(pair[1].trim());
+                if (weight > 0) {
+                    weights.put(pair[0].trim(), weight);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                System.err.println("Ignoring transfer weight '" + entry + "'");
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Take a transfer slot, waiting in the queue for up to timeoutMs.
+     * @return the ticket, or null if no slot freed up in time
+     */
+    public synchronized Ticket admit(String username, long timeoutMs) {
+        Ticket ticket = new Ticket(username);
+        UserShare share = shares.computeIfAbsent(username, k -> new UserShare(weights.getOrDefault(k, 1.0)));
+        share.waiting++;
+        waiting.add(ticket);
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (nextAdmitted() != ticket) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(remaining);
+            }
+            ticket.share = share;
+            share.running++;
+            running++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            waiting.remove(ticket);
+            share.waiting--;
+            if (share.running == 0 && share.waiting == 0) {
+                shares.remove(username);
+            }
+        }
+
+        rebalance();
+        // Another waiter may fit in the slots that are still free
+        notifyAll();
+        return ticket;
+    }
+
+    // The waiting ticket that gets the next free slot, or null if none fits
+    private Ticket nextAdmitted() {
+        if (running >= maxTransfers) {
+            return null;
+        }
+        Ticket next = null;
+        for (Ticket candidate : waiting) {
+            UserShare share = shares.get(candidate.username);
+            if (share.running >= maxUserTransfers) {
+                continue;
+            }
+            if (next == null || share.running < shares.get(next.username).running) {
+                next = candidate;
+            }
+        }
+        return next;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.closed || ticket.share == null) {
+            return;
+        }
+        ticket.closed = true;
+        ticket.share.running--;
+        running--;
+        if (ticket.share.running == 0 && ticket.share.waiting == 0) {
+            shares.remove(ticket.username);
+        }
+        rebalance();
+        notifyAll();
+    }
+
+    // Split the total rate between users with running transfers by weight
+    private void rebalance() {
+        double totalWeight = 0;
+        for (UserShare share : shares.values()) {
+            if (share.running > 0) {
+                totalWeight += share.weight;
+            }
+        }
+        for (UserShare share : shares.values()) {
+            if (share.running == 0) {
+                continue;
+            }
+            double rate = totalRate > 0 ? totalRate * share.weight / totalWeight : 0;
+            if (userRate > 0) {
+                rate = rate > 0 ? Math.min(rate, userRate) : userRate;
+            }
+            share.bucket.setRate(rate);
+        }
+    }
+
+    public synchronized String metricsSummary() {
+        return "transfers running=" + running + " queued=" + waiting.size();
+    }
+}
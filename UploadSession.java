@@ -1,23 +1,63 @@
 package FileServer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class UploadSession {
     String username;
     String fileName;
     long expectedSize;
     long receivedSize;
+    boolean isPublic;
+    String requestId;
     int chunkSize;
-    List<byte[]> chunks;
+    File tempFile;
+    FileChannel channel;
+    // Content hash, updated as chunks are written so completion needs no second pass
+    MessageDigest digest;
+    // Buffer space for the chunk in flight, held only while a client is attached
+    BufferBudget.Lease lease;
+    long lastActivity;
     
-    public UploadSession(String username, String fileName, long expectedSize, int chunkSize) {
+    // Set while no client is attached; the session can be resumed until it expires
+    boolean detached;
+    long detachedAt;
+    boolean expired;
+
+    /**
+     * @param lease buffer space for one chunk; the session owns it from here on
+     *              and returns it when it detaches, commits or is discarded
+     */
+    public UploadSession(String username, String fileName, long expectedSize, boolean isPublic, String requestId,
+                         BufferBudget.Lease lease, File tempFile) throws IOException {
         this.username = username;
         this.fileName = fileName;
         this.expectedSize = expectedSize;
-        this.chunkSize = chunkSize;
+        this.isPublic = isPublic;
+        this.requestId = requestId;
+        this.lease = lease;
+        this.chunkSize = lease.getSize();
         this.receivedSize = 0;
-        this.chunks = new ArrayList<>();
+        this.lastActivity = System.currentTimeMillis();
+        this.tempFile = tempFile;
+        // Chunks are appended to the temp file as they arrive, so heap use stays flat
+        this.channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            channel.close();
+            lease.release();
+            throw new IOException("SHA-256 not available", e);
+        }
     }
     
     public String getUsername() {
@@ -32,20 +72,159 @@ public class UploadSession {
         return expectedSize;
     }
     
-    public long getReceivedSize() {
+    public synchronized long getReceivedSize() {
         return receivedSize;
     }
     
-    public int getChunkSize() {
+    public boolean isPublic() {
+        return isPublic;
+    }
+
+    /**
+     * @return the request this upload answers, or null for a normal upload
+     */
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public synchronized int getChunkSize() {
         return chunkSize;
     }
     
-    public List<byte[]> getChunks() {
-        return chunks;
+    /**
+     * Change the chunk size, moving the buffer lease with it.
+     * @return false if the budget cannot cover a larger chunk or no client is attached
+     */
+    public synchronized boolean resizeChunks(int chunkSize) {
+        if (detached || !lease.resize(chunkSize)) {
+            return false;
+        }
+        this.chunkSize = chunkSize;
+        return true;
     }
     
-    public void addChunk(byte[] chunk) {
-        chunks.add(chunk);
-        receivedSize += chunk.length;
+    public File getTempFile() {
+        return tempFile;
+    }
+
+    /**
+     * Append the remaining bytes of the chunk. The buffer is drained but stays the caller's.
+     */
+    public synchronized void addChunk(ByteBuffer chunk) throws IOException {
+        if (detached) {
+            // The reaper took the session back; the client has to resume it
+            throw new IOException("Upload session is detached");
+        }
+        int length = chunk.remaining();
+        ByteBuffer digested = chunk.duplicate();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        digest.update(digested);
+        receivedSize += length;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Hex SHA-256 of everything received. Call once, when the upload is complete.
+     */
+    public synchronized String contentHash() {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public synchronized boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Mark the session as abandoned by its client, after flushing what was received
+     * so far, and give back its buffer lease. A later resume continues from getReceivedSize().
+     * @return false if the session was already detached
+     */
+    public synchronized boolean detach() {
+        if (detached) {
+            return false;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Error flushing upload temp file: " + e.getMessage());
+        }
+        lease.release();
+        detached = true;
+        detachedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Detach the session if its client has sent nothing since before the cutoff,
+     * e.g. because the connection died without the server noticing.
+     */
+    public synchronized boolean detachIfIdleSince(long cutoff) {
+        return !detached && lastActivity < cutoff && detach();
+    }
+
+    /**
+     * Attach a resuming client, dropping any partially written chunk.
+     * @param lease buffer space for one chunk, owned by the session if it is resumed
+     * @return false if the session is attached elsewhere or has expired
+     */
+    public synchronized boolean reattach(BufferBudget.Lease lease) throws IOException {
+        if (!detached || expired) {
+            return false;
+        }
+        channel.truncate(receivedSize);
+        channel.position(receivedSize);
+        this.lease = lease;
+        this.chunkSize = lease.getSize();
+        lastActivity = System.currentTimeMillis();
+        detached = false;
+        return true;
+    }
+
+    /**
+     * Expire the session if it has been detached since before the cutoff.
+     * Once expired it can no longer be reattached.
+     */
+    public synchronized boolean expireIfDetachedBefore(long cutoff) {
+        if (detached && !expired && detachedAt < cutoff) {
+            expired = true;
+        }
+        return expired;
+    }
+
+    /**
+     * Flush the temp file to disk and atomically rename it onto the target path.
+     * The buffer lease is returned first; nothing more will be received.
+     */
+    public synchronized void commit(File target) throws IOException {
+        lease.release();
+        channel.force(true);
+        channel.close();
+        try {
+            Files.move(tempFile.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Close and delete the temp file of an abandoned upload and return its buffer lease.
+     */
+    public synchronized void discard() {
+        lease.release();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing upload temp file: " + e.getMessage());
+        }
+        if (tempFile.exists() && !tempFile.delete()) {
+            System.err.println("Error deleting upload temp file: " + tempFile.getPath());
+        }
     }
 }
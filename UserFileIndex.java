@@ -0,0 +1,43 @@
+package FileServer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One owner's files, indexed by file name.
+ * Lookups are hash-based, so they cost the same however many files the owner has.
+ * The index is also the owner's lock: compound updates synchronize on it.
+ */
+public class UserFileIndex {
+    // Insertion order keeps listings in upload order, as before
+    private final Map<String, FileInfo> byName = new LinkedHashMap<>();
+    
+    public synchronized FileInfo get(String fileName) {
+        return byName.get(fileName);
+    }
+    
+    public synchronized boolean contains(String fileName) {
+        return byName.containsKey(fileName);
+    }
+    
+    /**
+     * Add a file, replacing any file with the same name.
+     * A replaced file moves to the end of the listing, like a fresh upload.
+     * @return the replaced entry, or null
+     */
+    public synchronized FileInfo put(FileInfo fileInfo) {
+        FileInfo previous = byName.remove(fileInfo.getFileName());
+        byName.put(fileInfo.getFileName(), fileInfo);
+        return previous;
+    }
+    
+    public synchronized FileInfo remove(String fileName) {
+        return byName.remove(fileName);
+    }
+    
+    public synchronized List<FileInfo> snapshot() {
+        return new ArrayList<>(byName.values());
+    }
+}
@@ -1,21 +1,46 @@
 package FileServer;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.io.File;
 
 
-public class Worker extends Thread {
+public class Worker implements ClientSession {
+    private static final long DATA_CHANNEL_TIMEOUT_SECONDS = 60;
+    // Parallel downloads: at most this many streams, each covering at least MIN_STREAM_RANGE bytes
+    private static final int MAX_DOWNLOAD_STREAMS = 8;
+    private static final long MIN_STREAM_RANGE = 1024 * 1024;
+    
+    // Listings framed clients can page through
+    private enum ListingScope {
+        MY_FILES("All My Files"),
+        PUBLIC_FILES("Public Files of Other Users"),
+        DOWNLOADABLE("Available Files for Download");
+        
+        final String title;
+        
+        ListingScope(String title) {
+            this.title = title;
+        }
+    }
+    
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private ControlChannel channel;
     private String username;
+    private boolean loggedIn;
+    // Negotiated at login: file data may be deflated on this session
+    private boolean compression;
+    // Upload in progress on this connection, detached for resume if the connection drops
+    private String activeUploadId;
 
     
     public Worker(Socket socket) {
@@ -24,43 +49,56 @@ public class Worker extends Thread {
     
 
     @Override
-    public void run() {
+    public boolean open() {
         try {
-            // Initialize streams
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            // Negotiate the protocol from the client's first bytes
+            channel = ControlChannel.accept(socket);
             
             // Handle login
             if (!handleLogin()) {
-                socket.close();
-                return;
+                return false;
             }
             
-            // Show menu and handle client requests
-            while (true) {
-                showMenu();
-                String choice = (String) in.readObject();
-                
-                if (!handleClientRequest(choice)) {
-                    break; // Client wants to disconnect
-                }
+            showMenu();
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error with client " + username + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    @Override
+    public boolean serveNext() {
+        try {
+            String choice = (String) channel.readObject();
+            
+            if (!handleClientRequest(choice)) {
+                return false; // Client wants to disconnect
             }
             
+            // Show menu for the next request
+            showMenu();
+            return true;
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error with client " + username + ": " + e.getMessage());
-        } finally {
-            cleanup();
+            return false;
         }
     }
     
+    @Override
+    public void close() {
+        cleanup();
+    }
+    
     private boolean handleLogin() throws IOException, ClassNotFoundException {
         // Request username
-        out.writeObject("Enter your username: ");
-        username = ((String) in.readObject()).trim();
+        channel.writeObject("Enter your username: ");
+        username = ((String) channel.readObject()).trim();
         
         // Try to login
         if (Server.loginUser(username)) {
-            out.writeObject("LOGIN_SUCCESS");
+            loggedIn = true;
+            channel.writeObject("LOGIN_SUCCESS");
             
             // Get unread message count
             MessageManager msgManager = Server.getMessageManager();
@@ -69,12 +107,19 @@ public class Worker extends Thread {
             if (unreadCount > 0) {
                 welcomeMsg += " You have " + unreadCount + " unread message(s).";
             }
-            out.writeObject(welcomeMsg);
+            channel.writeObject(welcomeMsg);
+            
+            // Framed clients offer COMPRESSION:<deflate|none>; the answer holds for the session
+            if (!channel.isLegacy()) {
+                String offer = (String) channel.readObject();
+                compression = Compression.ENABLED && offer.equals("COMPRESSION:" + Compression.DEFLATE);
+                channel.writeObject("COMPRESSION:" + (compression ? Compression.DEFLATE : Compression.NONE));
+            }
 
             return true;
         } else {
-            out.writeObject("LOGIN_FAILED");
-            out.writeObject("User already logged in. Connection terminated.");
+            channel.writeObject("LOGIN_FAILED");
+            channel.writeObject("User already logged in. Connection terminated.");
             return false;
         }
     }
@@ -93,7 +138,7 @@ public class Worker extends Thread {
         menu.append("9. View activity history\n");
         menu.append("10. Logout\n");
         menu.append("Enter your choice: ");
-        out.writeObject(menu.toString());
+        channel.writeObject(menu.toString());
     }
     
     private boolean handleClientRequest(String choice) throws IOException, ClassNotFoundException {
@@ -126,10 +171,10 @@ public class Worker extends Thread {
                 handleViewHistory();
                 break;
             case "10":
-                out.writeObject("Logging out...");
+                channel.writeObject("Logging out...");
                 return false;
             default:
-                out.writeObject("Invalid choice. Please try again.");
+                channel.writeObject("Invalid choice. Please try again.");
         }
         return true;
     }
@@ -150,10 +195,15 @@ public class Worker extends Thread {
             userList.append("\n");
         }
         
-        out.writeObject(userList.toString());
+        channel.writeObject(userList.toString());
     }
     
-    private void handleViewMyFiles() throws IOException {
+    private void handleViewMyFiles() throws IOException, ClassNotFoundException {
+        if (!channel.isLegacy()) {
+            serveListing(ListingScope.MY_FILES);
+            return;
+        }
+        
         List<FileInfo> files = Server.getUserFiles(this.username);
         StringBuilder fileList = new StringBuilder("\n=== All My Files ===\n");
         if(files.isEmpty()){
@@ -176,10 +226,15 @@ public class Worker extends Thread {
 
         fileList.append("\nTotal files: " + String.valueOf(cnt - 1));
 
-        out.writeObject(fileList.toString());
+        channel.writeObject(fileList.toString());
     }
     
-    private void handleViewPublicFiles() throws IOException {
+    private void handleViewPublicFiles() throws IOException, ClassNotFoundException {
+        if (!channel.isLegacy()) {
+            serveListing(ListingScope.PUBLIC_FILES);
+            return;
+        }
+        
         Map<String, List<FileInfo>> publicFiles = Server.getAllPublicFiles(username);
         StringBuilder fileList = new StringBuilder("\n=== Public Files of Other Users ===\n");
         
@@ -201,23 +256,27 @@ public class Worker extends Thread {
             }
         }
         
-        out.writeObject(fileList.toString());
+        channel.writeObject(fileList.toString());
     }
     
     private void handleUploadFile() throws IOException, ClassNotFoundException {
         // Receive upload mode first
-        String mode = (String) in.readObject();
+        String mode = (String) channel.readObject();
+        if (mode != null && mode.equals("RESUME_UPLOAD")) {
+            handleResumeUpload();
+            return;
+        }
         boolean isResponseToRequest = false;
         String requestId = null;
         if (mode != null && mode.equals("REQUEST_UPLOAD")) {
             isResponseToRequest = true;
-            requestId = ((String) in.readObject()).trim();
+            requestId = ((String) channel.readObject()).trim();
         }
 
         // Receive file info from client
-        String fileName = (String) in.readObject();
-        long fileSize = (long) in.readObject();
-        boolean isPublic = (boolean) in.readObject();
+        String fileName = (String) channel.readObject();
+        long fileSize = (long) channel.readObject();
+        boolean isPublic = (boolean) channel.readObject();
 
         if (isResponseToRequest) {
             // Per spec: response uploads are public by default
@@ -226,14 +285,14 @@ public class Worker extends Thread {
         
         // Check if client cancelled (file not found)
         if (fileName.equals("CANCEL_UPLOAD")) {
-            out.writeObject("Upload cancelled.");
+            channel.writeObject("Upload cancelled.");
             return;
         }
 
         // Validate request id (if this upload is in response to a request)
         if (isResponseToRequest) {
             if (requestId == null || requestId.isEmpty() || Server.getRequestById(requestId) == null) {
-                out.writeObject("INVALID_REQUEST_ID");
+                channel.writeObject("INVALID_REQUEST_ID");
                 return;
             }
         }
@@ -241,65 +300,191 @@ public class Worker extends Thread {
         System.out.println("Upload request from " + username + ": " + fileName + " (" + fileSize + " bytes)");
         
         // Check if file already exists
+        boolean deltaReplace = false;
         if (Server.fileExists(username, fileName)) {
-            out.writeObject("FILE_EXISTS");
+            channel.writeObject("FILE_EXISTS");
             
             // Wait for client decision
-            String decision = (String) in.readObject();
+            String decision = (String) channel.readObject();
             if (decision.equals("CANCEL")) {
-                out.writeObject("UPLOAD_CANCELLED");
+                channel.writeObject("UPLOAD_CANCELLED");
                 return;
             } else if (decision.startsWith("RENAME:")) {
                 fileName = decision.substring(7);
                 System.out.println("File renamed to: " + fileName);
+            } else if (decision.equals("REPLACE_DELTA") && !channel.isLegacy()) {
+                deltaReplace = true;
+                System.out.println("Replacing existing file with delta transfer: " + fileName);
             } else if (decision.equals("REPLACE")) {
                 System.out.println("Replacing existing file: " + fileName);
             }
         } else {
-            out.writeObject("FILE_NEW");
+            channel.writeObject("FILE_NEW");
         }
         
-        // Initiate upload on server
-        String response = Server.initiateUpload(username, fileName, fileSize);
+        // Wait for a transfer slot; when the server is busy the upload queues instead of being rejected
+        TransferScheduler.Ticket ticket = Server.getTransferScheduler().admit(username, Server.ADMISSION_TIMEOUT_MS);
+        if (ticket == null) {
+            channel.writeObject("UPLOAD_REJECTED:Server busy. Try again later.");
+            return;
+        }
+        try {
+            // Initiate upload on server
+            String response = Server.initiateUpload(username, fileName, fileSize, isPublic, isResponseToRequest ? requestId : null);
+        
+            if (response == null) {
+                channel.writeObject("UPLOAD_REJECTED:Server busy. Try again later.");
+                return;
+            }
+        
+            // Parse response (fileId:chunkSize)
+            String[] parts = response.split(":");
+            String fileId = parts[0];
+            int chunkSize = Integer.parseInt(parts[1]);
+            int window = uploadWindow(chunkSize);
+        
+            // Send confirmation to client with chunk size (and window for framed clients)
+            channel.writeObject("UPLOAD_APPROVED:" + fileId + ":" + chunkSize + (channel.isLegacy() ? "" : ":" + window));
+        
+            if (!deltaReplace) {
+                receiveChunks(fileId, chunkSize, window, fileName, isPublic, isResponseToRequest ? requestId : null, null,
+                              ticket);
+                return;
+            }
+        
+            // Delta replace: send signatures of the current file's blocks, then rebuild from COPY + CHUNK
+            FileInfo existing = Server.getFileInfo(username, fileName);
+            int blockSize = DeltaSync.blockSizeFor(existing != null ? existing.getFileSize() : fileSize);
+            DeltaSync.Base base = null;
+            try {
+                if (existing != null) {
+                    base = new DeltaSync.Base(Server.getStoredFile(existing), blockSize);
+                }
+            } catch (IOException e) {
+                System.err.println("Delta base unavailable, expecting a full upload: " + e.getMessage());
+            }
+            try {
+                long blockCount = base != null ? base.getBlockCount() : 0;
+                channel.writeObject("DELTA_SIGNATURES:" + blockSize + ":" + blockCount);
+                channel.writeObject(base != null ? base.signatures() : new byte[0]);
+                receiveChunks(fileId, chunkSize, window, fileName, isPublic, isResponseToRequest ? requestId : null, base,
+                              ticket);
+            } finally {
+                if (base != null) {
+                    base.close();
+                }
+            }
+        } finally {
+            ticket.close();
+        }
+    }
+    
+    private void handleResumeUpload() throws IOException, ClassNotFoundException {
+        String fileId = (String) channel.readObject();
+        if (fileId.equals("CANCEL_UPLOAD")) {
+            channel.writeObject("Upload cancelled.");
+            return;
+        }
+        long fileSize = (long) channel.readObject();
         
-        if (response == null) {
-            out.writeObject("UPLOAD_REJECTED:Server buffer full. Cannot accept upload.");
+        TransferScheduler.Ticket ticket = Server.getTransferScheduler().admit(username, Server.ADMISSION_TIMEOUT_MS);
+        if (ticket == null) {
+            channel.writeObject("UPLOAD_REJECTED:Server busy. Try again later.");
+            return;
+        }
+        try {
+            resumeUpload(fileId, fileSize, ticket);
+        } finally {
+            ticket.close();
+        }
+    }
+    
+    private void resumeUpload(String fileId, long fileSize, TransferScheduler.Ticket ticket)
+            throws IOException, ClassNotFoundException {
+        UploadSession session = Server.resumeUpload(username, fileId, fileSize);
+        if (session == null) {
+            channel.writeObject("UPLOAD_REJECTED:No resumable upload with that ID (expired, size changed or server busy).");
             return;
         }
         
-        // Parse response (fileId:chunkSize)
-        String[] parts = response.split(":");
-        String fileId = parts[0];
-        int chunkSize = Integer.parseInt(parts[1]);
+        int chunkSize = session.getChunkSize();
+        int window = uploadWindow(chunkSize);
+        long offset = session.getReceivedSize();
+        System.out.println("Resuming upload for " + username + ": " + session.getFileName() + " at byte " + offset);
         
-        // Send confirmation to client with chunk size
-        out.writeObject("UPLOAD_APPROVED:" + fileId + ":" + chunkSize);
+        channel.writeObject("UPLOAD_RESUMED:" + fileId + ":" + chunkSize + ":" + window + ":" + offset);
+        receiveChunks(fileId, chunkSize, window, session.getFileName(), session.isPublic(), session.getRequestId(), null,
+                      ticket);
+    }
+    
+    // Legacy clients wait for an ACK after every chunk
+    private int uploadWindow(int chunkSize) {
+        return channel.isLegacy() ? 1 : Server.getUploadWindow(chunkSize);
+    }
+    
+    /**
+     * Receive chunks until COMPLETE. Framed clients get cumulative ACK:<chunks received>
+     * every half window; legacy clients a plain ACK per chunk.
+     * With a delta base, COPY:<startBlock>:<blockCount> messages count as chunks and
+     * append those blocks of the base file.
+     * If the connection drops, cleanup() detaches the session so it can be resumed.
+     * Chunks are acknowledged no faster than the ticket's bandwidth share allows.
+     */
+    private void receiveChunks(String fileId, int chunkSize, int window, String fileName, boolean isPublic,
+                               String requestId, DeltaSync.Base deltaBase, TransferScheduler.Ticket ticket)
+            throws IOException, ClassNotFoundException {
+        boolean windowed = !channel.isLegacy();
+        int ackInterval = Math.max(1, window / 2);
+        long chunksReceived = 0;
+        // Only windowed ACKs can carry a new chunk size, so legacy uploads keep the initial one
+        ChunkSizePolicy chunkPolicy = new ChunkSizePolicy(chunkSize, window);
+        activeUploadId = fileId;
         
         // Receive chunks
         while (true) {
-            String msg = (String) in.readObject();
+            String msg = (String) channel.readObject();
             
-            if (msg.equals("CHUNK")) {
-                byte[] chunk = (byte[]) in.readObject();
+            if (msg.equals("CHUNK") || (msg.startsWith("COPY:") && deltaBase != null)) {
+                boolean stored;
+                int wireBytes;
+                if (msg.equals("CHUNK")) {
+                    ByteBuffer chunk = channel.readChunk();
+                    wireBytes = chunk.remaining();
+                    stored = Server.receiveChunk(fileId, chunk);
+                    BufferPool.release(chunk);
+                } else {
+                    stored = copyBaseBlocks(fileId, deltaBase, msg);
+                    wireBytes = msg.length();
+                }
                 
-                if (Server.receiveChunk(fileId, chunk)) {
-                    // smol delay
-
-                    // try {
-                    //     Thread.sleep(1000); 
-                    // } catch (InterruptedException e) {
-                    //     Thread.currentThread().interrupt();
-                    // }
-                    out.writeObject("ACK");
+                if (stored) {
+                    ticket.pace(wireBytes);
+                    chunksReceived++;
+                    chunkPolicy.chunkReceived(wireBytes);
+                    if (!windowed) {
+                        channel.writeObject("ACK");
+                    } else if (chunksReceived % ackInterval == 0) {
+                        int nextChunkSize = chunkPolicy.nextChunkSize(Server.getBufferPressure());
+                        if (nextChunkSize != chunkSize) {
+                            chunkSize = Server.resizeChunks(fileId, nextChunkSize);
+                            chunkPolicy.setChunkSize(chunkSize);
+                        }
+                        channel.writeObject("ACK:" + chunksReceived + ":" + chunkSize);
+                    }
                 } else {
-                    out.writeObject("ERROR");
+                    activeUploadId = null;
+                    channel.writeObject("ERROR");
                     Server.cancelUpload(fileId);
+                    if (windowed) {
+                        discardUploadStream();
+                    }
                     return;
                 }
             } else if (msg.equals("COMPLETE")) {
+                activeUploadId = null;
                 // Complete the upload
                 String result = Server.completeUpload(fileId, isPublic);
-                out.writeObject(result);
+                channel.writeObject(result);
                 System.out.println("Upload completed for " + username + ": " + fileName);
                 
                 // Send notification to uploader
@@ -318,7 +503,7 @@ public class Worker extends Thread {
                 Server.getActivityLog().logActivity(username, fileName, ActivityLog.ActivityType.UPLOAD, uploadDesc);
 
                 // If this upload was a response to a request, fulfill it and notify requester
-                if (isResponseToRequest && requestId != null) {
+                if (requestId != null) {
                     FileRequest req = Server.fulfillRequestById(requestId, username);
                     if (req != null) {
                         String requester = req.getRequester();
@@ -334,17 +519,140 @@ public class Worker extends Thread {
                     }
                 }
                 
+                return;
+            } else if (msg.equals("ABORT")) {
+                activeUploadId = null;
+                Server.cancelUpload(fileId);
                 return;
             } else {
-                out.writeObject("ERROR: Invalid message");
+                activeUploadId = null;
+                channel.writeObject("ERROR: Invalid message");
                 Server.cancelUpload(fileId);
+                if (windowed) {
+                    discardUploadStream();
+                }
                 return;
             }
         }
     }
     
-    private void handleDownloadFile() throws IOException, ClassNotFoundException {
-        // Show available files (own files + public files from others)
+    private boolean copyBaseBlocks(String fileId, DeltaSync.Base base, String copy) {
+        String[] parts = copy.split(":");
+        long startBlock;
+        int blockCount;
+        try {
+            startBlock = Long.parseLong(parts[1]);
+            blockCount = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+        if (!base.hasBlocks(startBlock, blockCount)) {
+            return false;
+        }
+        ByteBuffer block = BufferPool.acquire(base.getBlockSize());
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                base.readBlock(startBlock + i, block);
+                if (!Server.receiveChunk(fileId, block)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error copying delta blocks for upload " + fileId + ": " + e.getMessage());
+            return false;
+        } finally {
+            BufferPool.release(block);
+        }
+    }
+    
+    /**
+     * After a failed windowed upload, skip the chunks the client already had in
+     * flight until it sends COMPLETE or, having seen the error, ABORT.
+     */
+    private void discardUploadStream() throws IOException, ClassNotFoundException {
+        while (true) {
+            Object msg = channel.readPooled();
+            if (msg instanceof ByteBuffer) {
+                BufferPool.release((ByteBuffer) msg);
+            } else if (msg.equals("COMPLETE") || msg.equals("ABORT")) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Answer page requests until the client sends LIST_DONE.
+     * Only framed clients page; legacy clients get the whole listing as one string.
+     */
+    private void serveListing(ListingScope scope) throws IOException, ClassNotFoundException {
+        while (true) {
+            String request = (String) channel.readObject();
+            if (!request.startsWith(ListingQuery.PREFIX)) {
+                return;
+            }
+            
+            ListingQuery.Page page;
+            try {
+                ListingQuery query = ListingQuery.parse(request);
+                page = query.select(listingCandidates(scope, query.getOwner()));
+            } catch (IllegalArgumentException e) {
+                channel.writeObject("ERROR: " + e.getMessage());
+                channel.writeObject("");
+                continue;
+            }
+            channel.writeObject(formatPage(scope, page));
+            channel.writeObject(page.nextCursor == null ? "" : page.nextCursor);
+        }
+    }
+    
+    // Files the scope covers, narrowed to one owner when the query names one
+    private List<FileInfo> listingCandidates(ListingScope scope, String owner) {
+        List<FileInfo> files = new ArrayList<>();
+        if (scope != ListingScope.PUBLIC_FILES && (owner.isEmpty() || owner.equals(username))) {
+            files.addAll(Server.getUserFiles(username));
+        }
+        if (scope != ListingScope.MY_FILES) {
+            Map<String, List<FileInfo>> publicFiles = Server.getAllPublicFiles(username);
+            if (owner.isEmpty()) {
+                for (List<FileInfo> ownerFiles : publicFiles.values()) {
+                    files.addAll(ownerFiles);
+                }
+            } else if (publicFiles.containsKey(owner)) {
+                files.addAll(publicFiles.get(owner));
+            }
+        }
+        return files;
+    }
+    
+    private String formatPage(ListingScope scope, ListingQuery.Page page) {
+        StringBuilder fileList = new StringBuilder("\n=== " + scope.title + " ===\n");
+        if (page.total == 0) {
+            fileList.append("\nNo matching files.\n");
+            return fileList.toString();
+        }
+        
+        if (scope == ListingScope.MY_FILES) {
+            fileList.append("\nFile ID\t\tFile Name\t\tStatus(Public/Private)\t\tSize(in Bytes)\n");
+        } else {
+            fileList.append("\nOwner\t\tFile Name\t\tStatus(Public/Private)\t\tSize(in Bytes)\n");
+        }
+        int count = page.offset + 1;
+        for (FileInfo file : page.files) {
+            fileList.append(count + ") ");
+            fileList.append((scope == ListingScope.MY_FILES ? file.getFileId() : file.getOwner()) + "\t\t");
+            fileList.append(file.getFileName() + "\t\t");
+            fileList.append((file.isPublic() ? "Public" : "Private") + "\t\t");
+            fileList.append(file.getFileSize() + "\n");
+            count++;
+        }
+        
+        fileList.append("\nShowing " + (page.offset + 1) + "-" + (count - 1) + " of " + page.total + " files");
+        return fileList.toString();
+    }
+    
+    // The whole download catalog in one string, for legacy clients
+    private String legacyDownloadCatalog() {
         StringBuilder availableFiles = new StringBuilder("\n=== Available Files for Download ===\n");
         
         // Show user's own files (both public and private)
@@ -378,65 +686,115 @@ public class Worker extends Thread {
             }
         }
         
-        out.writeObject(availableFiles.toString());
+        return availableFiles.toString();
+    }
+    
+    private void handleDownloadFile() throws IOException, ClassNotFoundException {
+        // Show available files (own files + public files from others)
+        if (!channel.isLegacy()) {
+            serveListing(ListingScope.DOWNLOADABLE);
+        } else {
+            channel.writeObject(legacyDownloadCatalog());
+        }
         
        
-        String ownerName = (String) in.readObject();
+        String ownerName = (String) channel.readObject();
         
         
         if (ownerName.equals("CANCEL_DOWNLOAD")) {
-            out.writeObject("Download cancelled.");
+            channel.writeObject("Download cancelled.");
             return;
         }
         
-        String fileName = (String) in.readObject();
+        String fileName = (String) channel.readObject();
         
         // Validate file access
         FileInfo fileInfo = Server.getFileInfo(ownerName, fileName);
         if (fileInfo == null) {
-            out.writeObject("ERROR:File not found");
+            channel.writeObject("ERROR:File not found");
             return;
         }
         
         // Check if user has access (own file or public file)
         if (!ownerName.equals(username) && !fileInfo.isPublic()) {
-            out.writeObject("ERROR:Access denied - file is private");
+            channel.writeObject("ERROR:Access denied - file is private");
             return;
         }
         
-        // Get file from disk
-        String filePath = Server.BASE_DIRECTORY + File.separator + ownerName + File.separator + fileName;
-        java.io.File file = new java.io.File(filePath);
+        // Get file from disk (shared blob or the owner's directory)
+        java.io.File file = Server.getStoredFile(fileInfo);
         
         if (!file.exists()) {
-            out.writeObject("ERROR:File not found on server");
+            channel.writeObject("ERROR:File not found on server");
             return;
         }
         
-        // Send approval with file size
-        out.writeObject("DOWNLOAD_APPROVED:" + file.length());
+        // Send approval with file size; framed clients also get the content identity,
+        // so a partial download is only resumed against the same content
+        if (channel.isLegacy()) {
+            channel.writeObject("DOWNLOAD_APPROVED:" + file.length());
+        } else {
+            String contentId = fileInfo.getBlobHash() != null ? fileInfo.getBlobHash() : fileInfo.getFileId();
+            channel.writeObject("DOWNLOAD_APPROVED:" + file.length() + ":" + contentId);
+        }
         
-        // Send file in chunks (MAX_CHUNK_SIZE, no ACK needed)
-        try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
-            byte[] buffer = new byte[Server.MAX_CHUNK_SIZE];
-            int bytesRead;
+        // Framed clients pick how the bytes are delivered, optionally with a byte range:
+        // DOWNLOAD_MODE:<DATA|INLINE>[:<offset>[:<length>]] or DOWNLOAD_MODE:PARALLEL:<offset>:<length>:<streams>
+        // Legacy clients read inline chunks straight after the approval
+        String[] mode = channel.isLegacy() ? new String[] { "DOWNLOAD_MODE", "INLINE" }
+                                           : ((String) channel.readObject()).split(":");
+        long fileLength = file.length();
+        long offset;
+        long length;
+        int streams;
+        try {
+            offset = mode.length > 2 ? Long.parseLong(mode[2]) : 0;
+            length = mode.length > 3 ? Long.parseLong(mode[3]) : fileLength - offset;
+            streams = mode.length > 4 ? Integer.parseInt(mode[4]) : 1;
+        } catch (NumberFormatException e) {
+            channel.writeObject("ERROR:Invalid download mode");
+            return;
+        }
+        if (offset < 0 || length < 0 || offset > fileLength || length > fileLength - offset) {
+            channel.writeObject("ERROR:Invalid byte range");
+            return;
+        }
+        
+        // Deflate the data if the session negotiated it and the content is not already compressed
+        boolean compress = compression && Compression.worthCompressing(fileName, file);
+        
+        // Downloads queue for a transfer slot like uploads do
+        TransferScheduler.Ticket ticket = Server.getTransferScheduler().admit(username, Server.ADMISSION_TIMEOUT_MS);
+        if (ticket == null) {
+            channel.writeObject("ERROR:Server busy. Try again later.");
+            return;
+        }
+        
+        try {
+            // Popular public files are served from a shared memory mapping; only admitted downloads touch it
+            ByteBuffer mapped = fileInfo.isPublic() ? Server.getMappedFileCache().get(file) : null;
             
-            while ((bytesRead = fis.read(buffer)) > 0) {
-                byte[] chunk = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunk, 0, bytesRead);
-                out.writeObject(chunk);
-
-                // Add delay to simulate slow network / test concurrent downloads
-                // try {
-                //     Thread.sleep(100); 
-                // } catch (InterruptedException e) {
-                //     Thread.currentThread().interrupt();
-                // }
-
+            boolean sent;
+            if (mode.length > 1 && mode[1].equals("DATA")) {
+                sent = sendFileOverDataChannel(file, mapped, offset, length, compress, ticket);
+            } else if (mode.length > 4 && mode[1].equals("PARALLEL")) {
+                sent = sendFileOverDataChannels(file, mapped, offset, length, streams, compress, ticket);
+            } else {
+                channel.setCompression(compress);
+                try {
+                    sent = sendFileInline(file, mapped, offset, length, ticket);
+                } finally {
+                    channel.setCompression(false);
+                }
+            }
+            // Free the slot as soon as the bytes are out
+            ticket.close();
+            if (!sent) {
+                return;
             }
             
             // Send completion signal
-            out.writeObject("DOWNLOAD_COMPLETE");
+            channel.writeObject("DOWNLOAD_COMPLETE");
             System.out.println("Download completed for " + username + ": " + fileName + " from " + ownerName);
             
             // Send notification to downloader
@@ -455,29 +813,160 @@ public class Worker extends Thread {
             Server.getActivityLog().logActivity(username, fileName, ActivityLog.ActivityType.DOWNLOAD, downloadDesc);
             
         } catch (IOException e) {
-            out.writeObject("ERROR:" + e.getMessage());
+            channel.writeObject("ERROR:" + e.getMessage());
             System.err.println("Error during download: " + e.getMessage());
+        } finally {
+            ticket.close();
+        }
+    }
+    
+    private boolean sendFileInline(File file, ByteBuffer mapped, long offset, long length,
+                                   TransferScheduler.Ticket ticket) throws IOException {
+        if (mapped != null) {
+            // Send each chunk straight out of the mapping
+            int end = (int) (offset + length);
+            mapped.position((int) offset);
+            while (mapped.position() < end) {
+                mapped.limit(Math.min(end, mapped.position() + Server.MAX_CHUNK_SIZE));
+                ticket.pace(mapped.remaining());
+                channel.writeBuffer(mapped);
+                mapped.position(mapped.limit());
+            }
+            return true;
+        }
+        
+        // Send file in chunks (MAX_CHUNK_SIZE, no ACK needed), reusing one pooled buffer
+        ByteBuffer buffer = BufferPool.acquire(Server.MAX_CHUNK_SIZE);
+        try (java.io.FileInputStream fis = new java.io.FileInputStream(file)) {
+            fis.getChannel().position(offset);
+            byte[] data = buffer.array();
+            int bytesRead;
+            long remaining = length;
+            
+            while (remaining > 0 && (bytesRead = fis.read(data, 0, (int) Math.min(Server.MAX_CHUNK_SIZE, remaining))) > 0) {
+                remaining -= bytesRead;
+                buffer.clear().limit(bytesRead);
+                ticket.pace(bytesRead);
+                channel.writeBuffer(buffer);
+
+                // Add delay to simulate slow network / test concurrent downloads
+                // try {
+                //     Thread.sleep(100); 
+                // } catch (InterruptedException e) {
+                //     Thread.currentThread().interrupt();
+                // }
+
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
+        return true;
+    }
+    
+    private boolean sendFileOverDataChannel(File file, ByteBuffer mapped, long offset, long length,
+                                            boolean compress, TransferScheduler.Ticket ticket) throws IOException {
+        // Hand the file to the data channel and tell the client where to fetch it
+        String token = UUID.randomUUID().toString();
+        CompletableFuture<Long> transfer = Server.getDataChannelServer().expect(token, file, mapped, offset, length,
+                                                                                compress, ticket);
+        channel.writeObject("DATA_CHANNEL:" + Server.DATA_PORT + ":" + token + (compress ? ":" + Compression.DEFLATE : ""));
+        
+        return awaitTransfer(token, transfer);
+    }
+    
+    /**
+     * Split the range across several data connections. The reply lists one
+     * token,offset,length triple per stream, after the codec if the streams are compressed:
+     *   DATA_CHANNELS:<port>:[deflate:]<token>,<offset>,<length>;<token>,<offset>,<length>;...
+     */
+    private boolean sendFileOverDataChannels(File file, ByteBuffer mapped, long offset, long length,
+                                             int requestedStreams, boolean compress,
+                                             TransferScheduler.Ticket ticket) throws IOException {
+        // Streams shorter than MIN_STREAM_RANGE cost more in setup than they gain
+        long maxStreams = Math.min(Math.min(requestedStreams, MAX_DOWNLOAD_STREAMS), length / MIN_STREAM_RANGE);
+        int streams = (int) Math.max(1, maxStreams);
+        long rangeSize = (length + streams - 1) / streams;
+        
+        List<String> tokens = new ArrayList<>();
+        List<CompletableFuture<Long>> transfers = new ArrayList<>();
+        StringBuilder reply = new StringBuilder("DATA_CHANNELS:" + Server.DATA_PORT + ":");
+        if (compress) {
+            reply.append(Compression.DEFLATE).append(':');
+        }
+        for (int i = 0; i < streams; i++) {
+            long start = offset + i * rangeSize;
+            long rangeLength = Math.max(0, Math.min(rangeSize, offset + length - start));
+            String token = UUID.randomUUID().toString();
+            tokens.add(token);
+            transfers.add(Server.getDataChannelServer().expect(token, file, mapped, start, rangeLength, compress, ticket));
+            reply.append(i == 0 ? "" : ";").append(token).append(',').append(start).append(',').append(rangeLength);
+        }
+        channel.writeObject(reply.toString());
+        
+        boolean sent = false;
+        try {
+            for (int i = 0; i < streams; i++) {
+                if (!awaitTransfer(tokens.get(i), transfers.get(i))) {
+                    return false;
+                }
+            }
+            sent = true;
+            return true;
+        } finally {
+            if (!sent) {
+                // Stop every range, claimed or not, before the caller releases the ticket they are paced by
+                for (String token : tokens) {
+                    Server.getDataChannelServer().abort(token);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Wait for the client to fetch a registered range.
+     * On failure the error has already been reported to the client.
+     */
+    private boolean awaitTransfer(String token, CompletableFuture<Long> transfer) throws IOException {
+        try {
+            try {
+                transfer.get(DATA_CHANNEL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                // Give up only if the client never connected; a claimed transfer runs to completion
+                if (Server.getDataChannelServer().cancel(token)) {
+                    channel.writeObject("ERROR:Data channel timed out");
+                    return false;
+                }
+                transfer.get();
+            }
+            return true;
+        } catch (ExecutionException e) {
+            channel.writeObject("ERROR:" + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Server.getDataChannelServer().abort(token);
+            Thread.currentThread().interrupt();
+            channel.writeObject("ERROR:Download interrupted");
+        }
+        return false;
     }
     
     private void handleFileRequest() throws IOException, ClassNotFoundException {
         // Get file description from client
-        out.writeObject("ENTER_DESCRIPTION");
-        out.flush();
-        String description = (String) in.readObject();
+        channel.writeObject("ENTER_DESCRIPTION");
+        channel.flush();
+        String description = (String) channel.readObject();
         
         if (description == null || description.trim().isEmpty()) {
-            out.writeObject("ERROR:Description cannot be empty");
+            channel.writeObject("ERROR:Description cannot be empty");
             return;
         }
         
         // Get recipient (username or ALL)
-        out.writeObject("ENTER_RECIPIENT");
-        out.flush();
-        String recipient = (String) in.readObject();
+        channel.writeObject("ENTER_RECIPIENT");
+        channel.flush();
+        String recipient = (String) channel.readObject();
         
         if (recipient == null || recipient.trim().isEmpty()) {
-            out.writeObject("ERROR:Recipient cannot be empty");
+            channel.writeObject("ERROR:Recipient cannot be empty");
             return;
         }
         
@@ -486,13 +975,13 @@ public class Worker extends Thread {
         // Validate recipient
         if (!recipient.equalsIgnoreCase("ALL")) {
             if (recipient.equals(username)) {
-                out.writeObject("ERROR:Cannot send request to yourself");
+                channel.writeObject("ERROR:Cannot send request to yourself");
                 return;
             }
 
             // Recipient may be offline; only reject if user was never registered
             if (!Server.isUserRegistered(recipient)) {
-                out.writeObject("ERROR:User '" + recipient + "' does not exist");
+                channel.writeObject("ERROR:User '" + recipient + "' does not exist");
                 return;
             }
         }
@@ -508,11 +997,11 @@ public class Worker extends Thread {
         
         // Confirm to requester
         if (recipient.equalsIgnoreCase("ALL")) {
-            out.writeObject("SUCCESS:Request broadcast to all online users");
+            channel.writeObject("SUCCESS:Request broadcast to all online users");
         } else {
-            out.writeObject("SUCCESS:Request sent to " + recipient);
+            channel.writeObject("SUCCESS:Request sent to " + recipient);
         }
-        out.flush();
+        channel.flush();
         
         // Log activity
         String requestDesc = "To: " + recipient + " - " + description;
@@ -524,21 +1013,21 @@ public class Worker extends Thread {
         List<Message> unreadMessages = msgManager.getUnreadMessages(username);
         
         if (unreadMessages.isEmpty()) {
-            out.writeObject("NO_MESSAGES");
-            out.flush();
+            channel.writeObject("NO_MESSAGES");
+            channel.flush();
             return;
         }
         
         // Send unread messages
-        out.writeObject("UNREAD_MESSAGES");
-        out.writeObject(unreadMessages.size());
+        channel.writeObject("UNREAD_MESSAGES");
+        channel.writeObject(unreadMessages.size());
         
         List<String> messageIds = new ArrayList<>();
         for (Message msg : unreadMessages) {
-            out.writeObject(msg.toString());
+            channel.writeObject(msg.toString());
             messageIds.add(msg.getMessageId());
         }
-        out.flush();
+        channel.flush();
         
         // Mark as read
         msgManager.markMessagesAsRead(username, messageIds);
@@ -549,19 +1038,19 @@ public class Worker extends Thread {
         List<Message> readMessages = msgManager.getReadMessages(username);
         
         if (readMessages.isEmpty()) {
-            out.writeObject("NO_MESSAGES");
-            out.flush();
+            channel.writeObject("NO_MESSAGES");
+            channel.flush();
             return;
         }
         
         // Send read messages
-        out.writeObject("READ_MESSAGES");
-        out.writeObject(readMessages.size());
+        channel.writeObject("READ_MESSAGES");
+        channel.writeObject(readMessages.size());
         
         for (Message msg : readMessages) {
-            out.writeObject(msg.toString());
+            channel.writeObject(msg.toString());
         }
-        out.flush();
+        channel.flush();
     }
     
     private void handleViewHistory() throws IOException {
@@ -569,29 +1058,32 @@ public class Worker extends Thread {
         List<ActivityLog.Activity> activities = activityLog.getUserActivities(username);
         
         if (activities.isEmpty()) {
-            out.writeObject("NO_HISTORY");
-            out.flush();
+            channel.writeObject("NO_HISTORY");
+            channel.flush();
             return;
         }
         
         // Send activity history
-        out.writeObject("ACTIVITY_HISTORY");
-        out.writeObject(activities.size());
+        channel.writeObject("ACTIVITY_HISTORY");
+        channel.writeObject(activities.size());
         
         for (ActivityLog.Activity activity : activities) {
-            out.writeObject(activity.toString());
+            channel.writeObject(activity.toString());
         }
-        out.flush();
+        channel.flush();
     }
     
     private void cleanup() {
-        if (username != null) {
+        if (activeUploadId != null) {
+            Server.detachUpload(activeUploadId);
+        }
+        
+        if (username != null && loggedIn) {
             Server.logoutUser(username);
         }
         
         try {
-            if (out != null) out.close();
-            if (in != null) in.close();
+            if (channel != null) channel.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
             System.err.println("Error closing resources: " + e.getMessage());